@@ -0,0 +1,97 @@
+package Management System.DesignElevator;
+
+/* Learns where hall calls come from by time of day, so an ElevatorBank can park idle
+   cars where the next calls are likely. The day is cut into slots, and each slot keeps
+   a count of hall calls per level. Those counts decay by a fixed factor for every day
+   that passes, so old habits fade within a few days instead of weighing forever. */
+class DemandPredictor {
+	private int numLevels;
+	private long ticksPerDay;
+	private int slotsPerDay;
+	// weight left of a call after one day
+	private double dailyDecay;
+	// index slot * numLevels + level - 1
+	private double[] demand;
+	// day the counts of each slot were last decayed to
+	private long[] slotDay;
+	// scratch for parkingLevels, so the control loop does not allocate
+	private double[] weights;
+
+	public DemandPredictor(int _numLevels, long _ticksPerDay, int _slotsPerDay, double _dailyDecay) {
+		numLevels = _numLevels;
+		ticksPerDay = _ticksPerDay;
+		slotsPerDay = _slotsPerDay;
+		dailyDecay = _dailyDecay;
+		demand = new double[slotsPerDay * numLevels];
+		slotDay = new long[slotsPerDay];
+		weights = new double[numLevels];
+	}
+
+	public void recordHallCall(int level, long now) {
+		int slot = slotOf(now);
+		decay(slot, now / ticksPerDay);
+		demand[slot * numLevels + level - 1] += 1;
+	}
+
+	// expected share of the hall calls at level around now, 0 when nothing has been learned
+	public double getDemand(int level, long now) {
+		fillWeights(now);
+		double total = 0;
+		for (double w : weights) {
+			total += w;
+		}
+		return total == 0 ? 0 : weights[level - 1] / total;
+	}
+
+	/* Fill levels[0..count) with the levels (1-based, ascending) where count idle cars
+	   should wait: the weighted median of the expected demand for one car and, for more,
+	   evenly spaced weighted quantiles. Returns false when no demand has been learned. */
+	public boolean parkingLevels(long now, int count, int[] levels) {
+		fillWeights(now);
+		double total = 0;
+		for (double w : weights) {
+			total += w;
+		}
+		if (total == 0) {
+			return false;
+		}
+		int level = 0;
+		double seen = weights[0];
+		for (int i = 0; i < count; i++) {
+			double target = total * (i + 0.5) / count;
+			while (seen < target && level < numLevels - 1) {
+				seen += weights[++level];
+			}
+			levels[i] = level + 1;
+		}
+		return true;
+	}
+
+	// demand of the current slot plus half of the next one, which is what is coming up
+	private void fillWeights(long now) {
+		int slot = slotOf(now);
+		int next = (slot + 1) % slotsPerDay;
+		long day = now / ticksPerDay;
+		decay(slot, day);
+		// after the last slot of the day comes the first one of tomorrow
+		decay(next, next == 0 ? day + 1 : day);
+		for (int l = 0; l < numLevels; l++) {
+			weights[l] = demand[slot * numLevels + l] + 0.5 * demand[next * numLevels + l];
+		}
+	}
+
+	private void decay(int slot, long day) {
+		if (slotDay[slot] >= day) {
+			return;
+		}
+		double factor = Math.pow(dailyDecay, day - slotDay[slot]);
+		for (int l = 0; l < numLevels; l++) {
+			demand[slot * numLevels + l] *= factor;
+		}
+		slotDay[slot] = day;
+	}
+
+	private int slotOf(long now) {
+		return (int) (now % ticksPerDay * slotsPerDay / ticksPerDay);
+	}
+}
@@ -1,5 +1,11 @@
 package Management System.DesignElevator;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
 enum Direction {
 	UP, DOWN
 }
@@ -8,6 +14,11 @@ enum Status {
 	UP, DOWN, IDLE
 }
 
+// SCAN sweeps to the end of the shaft before turning around, LOOK turns at the last request
+enum SchedulingPolicy {
+	SCAN, LOOK
+}
+
 class Request {
 	private int level;
 	
@@ -23,14 +34,16 @@ class Request {
 class ElevatorButton {
 	private int level;
 	private Elevator elevator;
+	// requests are immutable, so every press can hand over the same one
+	private InternalRequest request;
 	
 	public ElevatorButton(int _level, Elevator _elevator) {
 		level = _level;
 		elevator = _elevator;
+		request = new InternalRequest(level);
 	}
 	
 	public void pressButton() {
-		InternalRequest request = new InternalRequest(level);
 		elevator.handleInternalRequest(request);
 	}
 }
@@ -56,69 +69,529 @@ class InternalRequest extends Request{
 	}
 }
 
+/* Pending stops of one direction, one bit per level packed into longs. The number of set
+   bits is kept up to date on every change, so "any stop pending" never scans the words. */
+class StopSet {
+	private long[] words;
+	private int count;
+	
+	public StopSet(int levels) {
+		words = new long[(levels + 63) >>> 6];
+	}
+	
+	public boolean get(int level) {
+		return (words[level >>> 6] & (1L << level)) != 0;
+	}
+	
+	public void set(int level) {
+		long before = words[level >>> 6];
+		words[level >>> 6] = before | (1L << level);
+		if (before != words[level >>> 6]) {
+			count++;
+		}
+	}
+	
+	public void clear(int level) {
+		long before = words[level >>> 6];
+		words[level >>> 6] = before & ~(1L << level);
+		if (before != words[level >>> 6]) {
+			count--;
+		}
+	}
+	
+	public boolean isEmpty() {
+		return count == 0;
+	}
+	
+	public int cardinality() {
+		return count;
+	}
+	
+	// lowest set level >= from, -1 if none
+	public int nextSetBit(int from) {
+		int w = from >>> 6;
+		if (w >= words.length) {
+			return -1;
+		}
+		long word = words[w] & (-1L << from);
+		while (word == 0) {
+			if (++w == words.length) {
+				return -1;
+			}
+			word = words[w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+	
+	// highest set level <= from, -1 if none
+	public int previousSetBit(int from) {
+		if (from < 0) {
+			return -1;
+		}
+		int w = Math.min(from >>> 6, words.length - 1);
+		long word = w == from >>> 6 ? words[w] & (-1L >>> (63 - (from & 63))) : words[w];
+		while (word == 0) {
+			if (--w < 0) {
+				return -1;
+			}
+			word = words[w];
+		}
+		return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+	}
+	
+	// highest set level + 1, 0 if none
+	public int length() {
+		return count == 0 ? 0 : previousSetBit((words.length << 6) - 1) + 1;
+	}
+}
+
 public class Elevator {
 	
 	private List<ElevatorButton> buttons;
-	private List<Boolean> upStops;
-	private List<Boolean> downStops;
+	// bit i is set when level i + 1 has a pending stop in that direction
+	private StopSet upStops;
+	private StopSet downStops;
 	
+	private int numLevels;
 	private int currLevel;
 	private Status status;
+	private SchedulingPolicy policy;
+	
+	// logical time in ticks, one tick per level travelled
+	private long clock;
+	// tick each pending hall call / car call was first made at, -1 when none is pending
+	private long[] upRequestedAt;
+	private long[] downRequestedAt;
+	private long[] carRequestedAt;
+	private long totalWaitTime;
+	private long servedHallCalls;
+	private long totalTravelTime;
+	private long servedCarCalls;
+	private long floorsTravelled;
+	
+	/* Intake for requests from other threads: a multi-producer single-consumer ring of
+	   request codes (kind * numLevels + level - 1, kinds being up hall call, down hall call
+	   and car call), stored +1 so 0 marks a slot not yet written. pending holds one flag
+	   per code, so repeated presses of a lit button are dropped before they reach the
+	   ring. Every slot in use holds a flag, so 3 * numLevels slots can never overflow. */
+	private static final int UP_CALL = 0;
+	private static final int DOWN_CALL = 1;
+	private static final int CAR_CALL = 2;
+	private AtomicIntegerArray intake;
+	private AtomicIntegerArray pending;
+	private AtomicLong intakeTail;
+	// only read and written by the control thread
+	private long intakeHead;
+	
+	private ElevatorTelemetry telemetry;
 	
 	public Elevator(int n) {
+		this(n, SchedulingPolicy.LOOK);
+	}
+	
+	public Elevator(int n, SchedulingPolicy _policy) {
 		buttons = new ArrayList<ElevatorButton>();
-		upStops = new ArrayList<Boolean>();
-		downStops = new ArrayList<Boolean>();
+		upStops = new StopSet(n);
+		downStops = new StopSet(n);
+		numLevels = n;
 		currLevel = 0;
 		status = Status.IDLE;
+		policy = _policy;
 		
-		for(int i = 0; i < n; i++) {
-			upStops.add(false);
-			downStops.add(false);
-		}
+		upRequestedAt = new long[n];
+		downRequestedAt = new long[n];
+		carRequestedAt = new long[n];
+		Arrays.fill(upRequestedAt, -1);
+		Arrays.fill(downRequestedAt, -1);
+		Arrays.fill(carRequestedAt, -1);
+		
+		intake = new AtomicIntegerArray(Integer.highestOneBit(3 * n - 1) << 1);
+		pending = new AtomicIntegerArray(3 * n);
+		intakeTail = new AtomicLong();
+		telemetry = new ElevatorTelemetry(n);
 	}
 	
 	public void insertButton(ElevatorButton eb) {
 		buttons.add(eb);
 	}
 	
+	public int getCurrLevel() {
+		return currLevel;
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	public SchedulingPolicy getPolicy() {
+		return policy;
+	}
+	
+	public long getClock() {
+		return clock;
+	}
+	
+	// let time pass without moving, e.g. while the doors are open or the car stands idle
+	public void elapse(long ticks) {
+		clock += ticks;
+		telemetry.recordElapsed(ticks, status == Status.IDLE);
+	}
+	
+	public ElevatorTelemetry getTelemetry() {
+		return telemetry;
+	}
+	
+	public long getFloorsTravelled() {
+		return floorsTravelled;
+	}
+	
+	// average ticks from a hall call to the car opening its gate at that level in that direction
+	public double getAverageWaitTime() {
+		return servedHallCalls == 0 ? 0 : (double) totalWaitTime / servedHallCalls;
+	}
+	
+	// average ticks from a car call to the car reaching that level
+	public double getAverageTravelTime() {
+		return servedCarCalls == 0 ? 0 : (double) totalTravelTime / servedCarCalls;
+	}
+	
+	public int getNumLevels() {
+		return numLevels;
+	}
+	
+	// number of levels with a pending stop in either direction
+	public int getPendingStops() {
+		return upStops.cardinality() + downStops.cardinality();
+	}
+	
+	// whether a hall call at level (1-based) in that direction is waiting for this car
+	public boolean hasExternalRequest(int level, Direction direction) {
+		long[] requestedAt = direction == Direction.UP ? upRequestedAt : downRequestedAt;
+		return requestedAt[level - 1] != -1;
+	}
+	
+	// whether the car will stop at level (1-based) anyway
+	public boolean hasStopAt(int level) {
+		return upStops.get(level - 1) || downStops.get(level - 1);
+	}
+	
+	// Take back a hall call, e.g. because a dispatcher handed it to another car.
+	// The stop stays if a car call for the same level is pending.
+	public void cancelExternalRequest(int level, Direction direction) {
+		int l = level - 1;
+		long[] requestedAt = direction == Direction.UP ? upRequestedAt : downRequestedAt;
+		if (requestedAt[l] == -1) {
+			return;
+		}
+		requestedAt[l] = -1;
+		if (carRequestedAt[l] == -1) {
+			(direction == Direction.UP ? upStops : downStops).clear(l);
+		}
+	}
+	
+	// Ticks until the car could open its gate at level (1-based) for a passenger going in
+	// direction, following the current sweep and the scheduling policy's turning points.
+	public long estimateTimeToArrival(int level, Direction direction) {
+		int target = level - 1;
+		Status sweep = status;
+		if (sweep == Status.IDLE) {
+			// taking the call starts a sweep towards it, as in handleExternalRequest
+			if (target == currLevel) {
+				return 0;
+			}
+			sweep = target > currLevel ? Status.UP : Status.DOWN;
+		}
+		int top = numLevels - 1;
+		int bottom = 0;
+		if (policy == SchedulingPolicy.LOOK) {
+			int highestStop = Math.max(upStops.length(), downStops.length()) - 1;
+			int lowestUp = upStops.nextSetBit(0);
+			int lowestDown = downStops.nextSetBit(0);
+			int lowestStop = lowestUp == -1 ? lowestDown : lowestDown == -1 ? lowestUp : Math.min(lowestUp, lowestDown);
+			top = Math.max(currLevel, Math.max(highestStop, target));
+			bottom = Math.min(currLevel, lowestStop == -1 ? target : Math.min(lowestStop, target));
+		}
+		if (sweep == Status.UP) {
+			if (direction == Direction.UP && target >= currLevel) {
+				return target - currLevel;
+			}
+			if (direction == Direction.DOWN) {
+				return (top - currLevel) + (top - target);
+			}
+			return (top - currLevel) + (top - bottom) + (target - bottom);
+		}
+		if (direction == Direction.DOWN && target <= currLevel) {
+			return currLevel - target;
+		}
+		if (direction == Direction.UP) {
+			return (currLevel - bottom) + (target - bottom);
+		}
+		return (currLevel - bottom) + (top - bottom) + (top - target);
+	}
+	
 	public void handleExternalRequest(ExternalRequest r) {
-        // Write your code here
+		handleExternalRequest(r.getLevel(), r.getDirection());
+	}
+	
+	// same as handleExternalRequest(ExternalRequest), for callers that do not keep request objects
+	public void handleExternalRequest(int requestLevel, Direction direction) {
+		int level = requestLevel - 1;
+		if (direction == Direction.UP) {
+			// the stop may already be set by a car call, the hall call still starts waiting now
+			if (upRequestedAt[level] == -1) {
+				upRequestedAt[level] = clock;
+			}
+			upStops.set(level);
+		} else {
+			if (downRequestedAt[level] == -1) {
+				downRequestedAt[level] = clock;
+			}
+			downStops.set(level);
+		}
+		if (status == Status.IDLE) {
+			if (level == currLevel) {
+				setState(direction == Direction.UP ? Status.UP : Status.DOWN, currLevel);
+			} else {
+				setState(level > currLevel ? Status.UP : Status.DOWN, currLevel);
+			}
+		}
 	}
 	
 	public void handleInternalRequest(InternalRequest r) {
-		// Write your code here
+		handleInternalRequest(r.getLevel());
+	}
+	
+	public void handleInternalRequest(int requestLevel) {
+		int level = requestLevel - 1;
+		if (level == currLevel) {
+			return;
+		}
+		if (carRequestedAt[level] == -1) {
+			carRequestedAt[level] = clock;
+		}
+		// a car call is a stop on the sweep that passes the level going away from here
+		if (level > currLevel) {
+			upStops.set(level);
+		} else {
+			downStops.set(level);
+		}
+		if (status == Status.IDLE) {
+			setState(level > currLevel ? Status.UP : Status.DOWN, currLevel);
+		}
+	}
+	
+	// Send the car to level without anyone asking for it, e.g. to wait where calls are
+	// expected. Nothing is recorded as a request, so the statistics are not affected.
+	public void moveTo(int level) {
+		int l = level - 1;
+		if (l == currLevel) {
+			return;
+		}
+		(l > currLevel ? upStops : downStops).set(l);
+		if (status == Status.IDLE) {
+			setState(l > currLevel ? Status.UP : Status.DOWN, currLevel);
+		}
+	}
+	
+	// Thread-safe: queue a hall call for the control thread to pick up in drainRequests.
+	public void submitExternalRequest(int level, Direction direction) {
+		checkLevel(level);
+		submit((direction == Direction.UP ? UP_CALL : DOWN_CALL) * numLevels + level - 1);
 	}
 	
+	// Thread-safe: queue a car call for the control thread to pick up in drainRequests.
+	public void submitInternalRequest(int level) {
+		checkLevel(level);
+		submit(CAR_CALL * numLevels + level - 1);
+	}
+	
+	// a level out of range would land on another button's flag, or past the last one
+	private void checkLevel(int level) {
+		if (level < 1 || level > numLevels) {
+			throw new IllegalArgumentException("level " + level + " is not between 1 and " + numLevels);
+		}
+	}
+	
+	private void submit(int code) {
+		if (!pending.compareAndSet(code, 0, 1)) {
+			// the same button is already queued
+			return;
+		}
+		long slot = intakeTail.getAndIncrement();
+		intake.set((int) slot & (intake.length() - 1), code + 1);
+	}
+	
+	// Apply the requests submitted by other threads so far, in submission order, and return
+	// how many there were. Must only be called from the thread that moves the car.
+	public int drainRequests() {
+		int drained = 0;
+		int mask = intake.length() - 1;
+		while (intakeHead < intakeTail.get()) {
+			int slot = (int) intakeHead & mask;
+			int code = intake.get(slot) - 1;
+			if (code < 0) {
+				// a producer has claimed the slot but not written it yet; next drain gets it
+				break;
+			}
+			intake.set(slot, 0);
+			intakeHead++;
+			// from here on a new press of the button queues it again
+			pending.set(code, 0);
+			int kind = code / numLevels;
+			int level = code % numLevels + 1;
+			if (kind == CAR_CALL) {
+				handleInternalRequest(level);
+			} else {
+				handleExternalRequest(level, kind == UP_CALL ? Direction.UP : Direction.DOWN);
+			}
+			drained++;
+		}
+		return drained;
+	}
+	
+	// Move to the next stop of the schedule and serve it. The search keeps sweeping in
+	// the current direction and turns around at most twice, each lookup being a
+	// nextSetBit/previousSetBit on the stop bitsets instead of a scan over all levels.
 	public void openGate() throws Exception
 	{
-		// Write your code here
+		if (noRequests(upStops) && noRequests(downStops)) {
+			setState(Status.IDLE, currLevel);
+			return;
+		}
+		boolean goingUp = status != Status.DOWN;
+		if (status == Status.IDLE) {
+			goingUp = upStops.nextSetBit(currLevel) != -1 || downStops.nextSetBit(currLevel) != -1;
+		}
+		int pos = currLevel;
+		long distance = 0;
+		int top = numLevels - 1;
+		for (int turn = 0; turn < 3; turn++) {
+			if (goingUp) {
+				int next = upStops.nextSetBit(pos);
+				if (next != -1) {
+					arrive(next, distance + next - pos, Status.UP);
+					return;
+				}
+				// highest down stop above us is where this sweep turns around
+				int turnAt = downStops.length() - 1;
+				if (turnAt >= pos) {
+					if (policy == SchedulingPolicy.SCAN) {
+						distance += top - pos;
+						pos = top;
+					}
+					arrive(turnAt, distance + Math.abs(pos - turnAt), Status.DOWN);
+					return;
+				}
+				if (policy == SchedulingPolicy.SCAN) {
+					distance += top - pos;
+					pos = top;
+				}
+				goingUp = false;
+			} else {
+				int next = downStops.previousSetBit(pos);
+				if (next != -1) {
+					arrive(next, distance + pos - next, Status.DOWN);
+					return;
+				}
+				// lowest up stop below us is where this sweep turns around
+				int turnAt = upStops.nextSetBit(0);
+				if (turnAt != -1 && turnAt <= pos) {
+					if (policy == SchedulingPolicy.SCAN) {
+						distance += pos;
+						pos = 0;
+					}
+					arrive(turnAt, distance + Math.abs(turnAt - pos), Status.UP);
+					return;
+				}
+				if (policy == SchedulingPolicy.SCAN) {
+					distance += pos;
+					pos = 0;
+				}
+				goingUp = true;
+			}
+		}
 	}
 	
 	public void closeGate()
 	{
-		// Write your code here
+		if (noRequests(upStops) && noRequests(downStops)) {
+			setState(Status.IDLE, currLevel);
+		}
+	}
+	
+	// travel to level and clear the stop served there in the given direction
+	private void arrive(int level, long distance, Status direction) {
+		clock += distance;
+		floorsTravelled += distance;
+		telemetry.recordElapsed(distance, false);
+		telemetry.recordStop(level);
+		setState(direction, level);
+		long[] hallRequestedAt = direction == Status.UP ? upRequestedAt : downRequestedAt;
+		if (hallRequestedAt[level] != -1) {
+			telemetry.recordPickup(level, direction == Status.UP, clock - hallRequestedAt[level]);
+			totalWaitTime += clock - hallRequestedAt[level];
+			servedHallCalls++;
+			hallRequestedAt[level] = -1;
+		}
+		(direction == Status.UP ? upStops : downStops).clear(level);
+		if (carRequestedAt[level] != -1) {
+			telemetry.recordDropoff(level, direction == Status.UP, clock - carRequestedAt[level]);
+			totalTravelTime += clock - carRequestedAt[level];
+			servedCarCalls++;
+			carRequestedAt[level] = -1;
+			// the car call may have been filed under the other direction
+			if (upRequestedAt[level] == -1) {
+				upStops.clear(level);
+			}
+			if (downRequestedAt[level] == -1) {
+				downStops.clear(level);
+			}
+		}
+	}
+	
+	// change status and level, and tell the status feed if either changed
+	private void setState(Status newStatus, int level) {
+		if (newStatus != status || level != currLevel) {
+			status = newStatus;
+			currLevel = level;
+			telemetry.recordState(clock, status, currLevel + 1);
+		}
+	}
+	
+	private boolean noRequests(StopSet stops)
+	{
+		return stops.isEmpty();
 	}
 	
-	private boolean noRequests(List<Boolean> stops)
+	private void appendStops(StringBuilder sb, StopSet stops)
 	{
-		for(int i = 0; i < stops.size(); i++)
-		{
-			if(stops.get(i))
-			{
-				return false;
+		sb.append('[');
+		for (int i = 0; i < numLevels; i++) {
+			if (i > 0) {
+				sb.append(", ");
 			}
+			sb.append(stops.get(i));
 		}
-		return true;
+		sb.append(']');
+	}
+	
+	// Write the status description into sb. Reusing one builder keeps a control loop that
+	// logs every tick free of garbage.
+	public void appendStatus(StringBuilder sb)
+	{
+		sb.append("Currently elevator status is : ").append(status)
+				.append(".\nCurrent level is at: ").append(currLevel + 1)
+				.append(".\nup stop list looks like: ");
+		appendStops(sb, upStops);
+		sb.append(".\ndown stop list looks like:  ");
+		appendStops(sb, downStops);
+		sb.append(".\n*****************************************\n");
 	}
 	
 	public String elevatorStatusDescription()
 	{	
-		String description = "Currently elevator status is : " + status 
-				+ ".\nCurrent level is at: " + (currLevel + 1)
-				+ ".\nup stop list looks like: " + upStops
-				+ ".\ndown stop list looks like:  " + downStops
-				+ ".\n*****************************************\n";
-		return description;
+		StringBuilder sb = new StringBuilder();
+		appendStatus(sb);
+		return sb.toString();
 	}
 }
@@ -0,0 +1,302 @@
+package Management System.DesignElevator;
+
+import java.util.Arrays;
+import java.util.List;
+
+// NEAREST_CAR assigns a hall call to the car that arrives first; DESTINATION_DISPATCH
+// assigns each passenger of a DestinationRequest to a car by the pickup and the stops the
+// ride adds, and books the destination on that car
+enum DispatchPolicy {
+	NEAREST_CAR, DESTINATION_DISPATCH
+}
+
+// hall call from a destination-dispatch panel, where the passenger keys in the level
+class DestinationRequest extends ExternalRequest {
+	private int destination;
+	
+	public DestinationRequest(int level, int _destination) {
+		super(level, _destination > level ? Direction.UP : Direction.DOWN);
+		destination = _destination;
+	}
+	
+	public int getDestination() {
+		return destination;
+	}
+}
+
+/* Group controller for a bank of cars serving the same levels. Each hall call goes to
+   the car with the lowest estimated time to arrival; rebalance() revisits calls that are
+   still waiting and moves them when the cars' positions have made another car clearly
+   better. Under DESTINATION_DISPATCH every DestinationRequest is a passenger of its own:
+   the bank keeps the destinations promised to each car per hall call and books them as
+   car calls once the car has picked the passengers up; these calls are not moved, as the
+   passengers were told which car to take. With a DemandPredictor attached, idle cars are
+   parked where the next hall calls are expected. */
+public class ElevatorBank {
+	// ticks a stop costs every passenger on board, for the doors and the slowing down
+	private static final long STOP_PENALTY = 2;
+	// a waiting call only moves when another car is at least this many ticks sooner
+	private static final long REBALANCE_MARGIN = 2;
+	
+	private List<Elevator> elevators;
+	private DispatchPolicy policy;
+	// waiting hall calls indexed by callKey, null when none, and the car each one is
+	// assigned to, -1 when none; plain arrays, so dispatch does not box keys or car indexes
+	private ExternalRequest[] pendingCalls;
+	private int[] assignedCar;
+	// destination dispatch: destinations[car][callKey] holds the levels (0-based) promised
+	// to the passengers waiting at that hall call for that car, null until the first one;
+	// plannedDropoffs[car][level] counts the hall calls whose passengers ride to the level
+	private StopSet[][] destinations;
+	private int[][] plannedDropoffs;
+	
+	// time as last given to tick(), in the cars' ticks
+	private long now;
+	private DemandPredictor predictor;
+	// cars sent to a parking level since their last hall call, so they are not moved again
+	private boolean[] parked;
+	// scratch for parkIdleCars
+	private int[] idleCars;
+	private int[] parkingLevels;
+	
+	public ElevatorBank(List<Elevator> _elevators, DispatchPolicy _policy) {
+		if (_elevators.isEmpty()) {
+			throw new IllegalArgumentException("An elevator bank needs at least one car");
+		}
+		int numLevels = _elevators.get(0).getNumLevels();
+		for (Elevator e : _elevators) {
+			if (e.getNumLevels() != numLevels) {
+				throw new IllegalArgumentException("All cars of a bank must serve the same levels, found "
+						+ numLevels + " and " + e.getNumLevels());
+			}
+		}
+		elevators = _elevators;
+		policy = _policy;
+		pendingCalls = new ExternalRequest[numLevels * 2];
+		assignedCar = new int[numLevels * 2];
+		Arrays.fill(assignedCar, -1);
+		destinations = new StopSet[elevators.size()][numLevels * 2];
+		plannedDropoffs = new int[elevators.size()][numLevels];
+		parked = new boolean[elevators.size()];
+		idleCars = new int[elevators.size()];
+		parkingLevels = new int[elevators.size()];
+	}
+	
+	public void setDemandPredictor(DemandPredictor _predictor) {
+		predictor = _predictor;
+	}
+	
+	public DemandPredictor getDemandPredictor() {
+		return predictor;
+	}
+	
+	// advance the bank's clock, then book destinations, rebalance waiting calls and park idle cars
+	public void tick(long _now) {
+		now = _now;
+		bookDestinations();
+		rebalance();
+		parkIdleCars();
+	}
+	
+	/* Send idle cars that have not been parked yet to the levels where the predictor
+	   expects the next hall calls. The idle cars, lowest first, are matched with the
+	   predicted levels, lowest first, so they do not cross each other on the way. */
+	public void parkIdleCars() {
+		if (predictor == null) {
+			return;
+		}
+		int count = 0;
+		for (int i = 0; i < elevators.size(); i++) {
+			Elevator e = elevators.get(i);
+			if (e.getStatus() == Status.IDLE && e.getPendingStops() == 0) {
+				idleCars[count++] = i;
+			}
+		}
+		if (count == 0 || !predictor.parkingLevels(now, count, parkingLevels)) {
+			return;
+		}
+		// insertion sort by current level, there are only a handful of cars
+		for (int i = 1; i < count; i++) {
+			int car = idleCars[i];
+			int j = i - 1;
+			while (j >= 0 && elevators.get(idleCars[j]).getCurrLevel() > elevators.get(car).getCurrLevel()) {
+				idleCars[j + 1] = idleCars[j];
+				j--;
+			}
+			idleCars[j + 1] = car;
+		}
+		for (int i = 0; i < count; i++) {
+			int car = idleCars[i];
+			if (!parked[car]) {
+				parked[car] = true;
+				elevators.get(car).moveTo(parkingLevels[i]);
+			}
+		}
+	}
+	
+	public List<Elevator> getElevators() {
+		return elevators;
+	}
+	
+	public DispatchPolicy getPolicy() {
+		return policy;
+	}
+	
+	// assign the hall call to the best car and return that car's index
+	public int handleExternalRequest(ExternalRequest r) {
+		if (policy == DispatchPolicy.DESTINATION_DISPATCH && r instanceof DestinationRequest) {
+			return handleDestinationRequest((DestinationRequest) r);
+		}
+		int key = callKey(r.getLevel(), r.getDirection());
+		int current = assignedCar[key];
+		if (current != -1 && elevators.get(current).hasExternalRequest(r.getLevel(), r.getDirection())) {
+			return current;
+		}
+		if (predictor != null) {
+			predictor.recordHallCall(r.getLevel(), now);
+		}
+		int best = bestCar(r);
+		elevators.get(best).handleExternalRequest(r);
+		parked[best] = false;
+		pendingCalls[key] = r;
+		assignedCar[key] = best;
+		return best;
+	}
+	
+	// Every passenger is assigned on their own, so two passengers at the same level may be
+	// sent to different cars; the destination is promised to the chosen car.
+	private int handleDestinationRequest(DestinationRequest r) {
+		if (predictor != null) {
+			predictor.recordHallCall(r.getLevel(), now);
+		}
+		int best = bestCar(r);
+		int key = callKey(r.getLevel(), r.getDirection());
+		// the car may have picked up earlier passengers here since the last tick
+		bookDestinations(best, key);
+		elevators.get(best).handleExternalRequest(r);
+		parked[best] = false;
+		StopSet promised = destinations[best][key];
+		if (promised == null) {
+			promised = new StopSet(plannedDropoffs[best].length);
+			destinations[best][key] = promised;
+		}
+		int dest = r.getDestination() - 1;
+		if (!promised.get(dest)) {
+			promised.set(dest);
+			plannedDropoffs[best][dest]++;
+		}
+		return best;
+	}
+	
+	// Turn the destinations promised at served hall calls into car calls. A car that no
+	// longer has the hall call but stands at its level picked the passengers up; if it is
+	// elsewhere the call was answered by another car and the promise lapses. Called from
+	// tick(), which must run at least once while a car stands at a level it stopped at.
+	public void bookDestinations() {
+		for (int car = 0; car < destinations.length; car++) {
+			for (int key = 0; key < destinations[car].length; key++) {
+				bookDestinations(car, key);
+			}
+		}
+	}
+	
+	private void bookDestinations(int car, int key) {
+		StopSet promised = destinations[car][key];
+		if (promised == null || promised.isEmpty()) {
+			return;
+		}
+		Elevator e = elevators.get(car);
+		int level = key / 2 + 1;
+		if (e.hasExternalRequest(level, key % 2 == 0 ? Direction.UP : Direction.DOWN)) {
+			return;
+		}
+		boolean pickedUp = e.getCurrLevel() == level - 1;
+		for (int dest = promised.nextSetBit(0); dest != -1; dest = promised.nextSetBit(dest + 1)) {
+			if (pickedUp) {
+				e.handleInternalRequest(dest + 1);
+			}
+			plannedDropoffs[car][dest]--;
+			promised.clear(dest);
+		}
+	}
+	
+	// Move waiting hall calls to a car that has become clearly faster, and forget the
+	// calls that have been served. Call it periodically as the cars move.
+	public void rebalance() {
+		for (int key = 0; key < pendingCalls.length; key++) {
+			ExternalRequest r = pendingCalls[key];
+			if (r == null) {
+				continue;
+			}
+			Elevator current = elevators.get(assignedCar[key]);
+			if (!current.hasExternalRequest(r.getLevel(), r.getDirection())) {
+				pendingCalls[key] = null;
+				assignedCar[key] = -1;
+				continue;
+			}
+			int best = bestCar(r);
+			Elevator candidate = elevators.get(best);
+			if (candidate != current && cost(best, r) + REBALANCE_MARGIN < cost(assignedCar[key], r)) {
+				current.cancelExternalRequest(r.getLevel(), r.getDirection());
+				candidate.handleExternalRequest(r);
+				parked[best] = false;
+				assignedCar[key] = best;
+			}
+		}
+	}
+	
+	private int bestCar(ExternalRequest r) {
+		int best = 0;
+		long bestCost = Long.MAX_VALUE;
+		for (int i = 0; i < elevators.size(); i++) {
+			Elevator e = elevators.get(i);
+			long c = cost(i, r);
+			// on a tie prefer the car with less work queued
+			if (c < bestCost || (c == bestCost && e.getPendingStops() < elevators.get(best).getPendingStops())) {
+				best = i;
+				bestCost = c;
+			}
+		}
+		return best;
+	}
+	
+	private long cost(int car, ExternalRequest r) {
+		long eta = elevators.get(car).estimateTimeToArrival(r.getLevel(), r.getDirection());
+		if (policy == DispatchPolicy.DESTINATION_DISPATCH && r instanceof DestinationRequest) {
+			eta += rideCost(car, r.getLevel() - 1, ((DestinationRequest) r).getDestination() - 1);
+		}
+		return eta;
+	}
+	
+	// Ticks the ride from level to dest costs on car: the passenger travels the levels and
+	// waits at every stop planned on the way, and a stop at dest that is not planned yet
+	// also delays whoever rides past it. Passengers going to levels the car already
+	// serves are grouped this way.
+	private long rideCost(int car, int level, int dest) {
+		int step = dest > level ? 1 : -1;
+		long cost = Math.abs(dest - level);
+		for (int l = level + step; l != dest; l += step) {
+			if (hasPlannedStop(car, l)) {
+				cost += STOP_PENALTY;
+			}
+		}
+		if (!hasPlannedStop(car, dest)) {
+			int beyond = 0;
+			for (int l = dest + step; l >= 0 && l < plannedDropoffs[car].length; l += step) {
+				if (hasPlannedStop(car, l)) {
+					beyond++;
+				}
+			}
+			cost += STOP_PENALTY * (1 + beyond);
+		}
+		return cost;
+	}
+	
+	private boolean hasPlannedStop(int car, int level) {
+		return plannedDropoffs[car][level] > 0 || elevators.get(car).hasStopAt(level + 1);
+	}
+	
+	private int callKey(int level, Direction direction) {
+		return (level - 1) * 2 + (direction == Direction.UP ? 0 : 1);
+	}
+}
@@ -0,0 +1,70 @@
+package Management System.DesignElevator;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/* Benchmark for the Elevator control loop.
+   Build the directory as shown in ElevatorSimulator, then:
+     java -cp /tmp/elevator ElevatorBenchmark [measuredTicks]
+   A tick presses a few car buttons and hall calls, moves the car to its next stop and
+   writes the status into a reused StringBuilder, the way a controller that logs every
+   tick would. For each building height it prints ticks per second and bytes allocated
+   per tick, which should stay at zero. */
+class ElevatorBenchmark {
+	private static final int[] LEVELS = {10, 60, 200};
+	private static final int WARMUP_TICKS = 200_000;
+
+	public static void main(String[] args) throws Exception {
+		int measuredTicks = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		System.out.printf("%-7s %-5s %12s %10s%n", "levels", "sched", "ticks/s", "B/tick");
+		for (int levels : LEVELS) {
+			for (SchedulingPolicy policy : SchedulingPolicy.values()) {
+				run(levels, policy, measuredTicks);
+			}
+		}
+	}
+
+	private static void run(int levels, SchedulingPolicy policy, int measuredTicks) throws Exception {
+		Elevator elevator = new Elevator(levels, policy);
+		ElevatorButton[] buttons = new ElevatorButton[levels];
+		for (int i = 0; i < levels; i++) {
+			buttons[i] = new ElevatorButton(i + 1, elevator);
+			elevator.insertButton(buttons[i]);
+		}
+		Random random = new Random(42);
+		// precomputed presses, so the measured loop does not touch Random
+		int[] picks = new int[1 << 16];
+		for (int i = 0; i < picks.length; i++) {
+			picks[i] = random.nextInt(levels);
+		}
+		StringBuilder status = new StringBuilder(64 + levels * 14);
+
+		for (int i = 0; i < WARMUP_TICKS; i++) {
+			tick(elevator, buttons, picks, i, status);
+		}
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long bytesBefore = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int i = 0; i < measuredTicks; i++) {
+			tick(elevator, buttons, picks, i, status);
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+		System.out.printf("%-7d %-5s %12.0f %10.2f%n", levels, policy,
+				measuredTicks * 1e9 / elapsed, (double) bytes / measuredTicks);
+	}
+
+	private static void tick(Elevator elevator, ElevatorButton[] buttons, int[] picks, int i,
+			StringBuilder status) throws Exception {
+		int pick = picks[i & (picks.length - 1)];
+		buttons[pick].pressButton();
+		int hall = picks[(i + 1) & (picks.length - 1)];
+		elevator.handleExternalRequest(hall + 1, (i & 1) == 0 ? Direction.UP : Direction.DOWN);
+		elevator.openGate();
+		elevator.closeGate();
+		status.setLength(0);
+		elevator.appendStatus(status);
+	}
+}
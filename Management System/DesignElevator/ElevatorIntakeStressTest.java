@@ -0,0 +1,195 @@
+package Management System.DesignElevator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/* Hammers the Elevator's thread-safe button intake from many producer threads.
+   Build the directory as shown in ElevatorSimulator, then:
+     java -cp /tmp/elevator ElevatorIntakeStressTest [producers] [rounds]
+   A free run first has every producer press random hall and car buttons as fast as it
+   can while the control thread drains and serves them, which reports the intake rate.
+   Checked rounds follow: the producers press together and meet at a barrier, and the
+   control thread must then drain each distinct button exactly once and find it among
+   the car's stops. The car clears every stop between rounds, so a dedup flag the free
+   run left set shows up as a lost press. Finally a press above the top level must be
+   refused with nothing queued. A failed check or a throwing producer ends the run with
+   an exception. */
+class ElevatorIntakeStressTest {
+	private static final int LEVELS = 50;
+	private static final int PRESSES_PER_ROUND = 16;
+
+	public static void main(String[] args) throws Exception {
+		int producers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+		Elevator elevator = new Elevator(LEVELS);
+		List<String> failures = new ArrayList<>();
+		ExecutorService pool = Executors.newFixedThreadPool(producers);
+		long presses;
+		try {
+			presses = freeRun(pool, elevator, producers, 2_000_000);
+			checkedRounds(pool, elevator, producers, rounds, failures);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		boolean rejected = false;
+		try {
+			elevator.submitExternalRequest(LEVELS + 1, Direction.UP);
+		} catch (IllegalArgumentException e) {
+			rejected = true;
+		}
+		if (!rejected || elevator.drainRequests() != 0) {
+			failures.add("a press for level " + (LEVELS + 1) + " was queued");
+		}
+
+		System.out.printf("%d producers, %d free presses, %d checked rounds%n", producers, presses, rounds);
+		for (String failure : failures) {
+			System.out.println("FAIL: " + failure);
+		}
+		if (!failures.isEmpty()) {
+			throw new IllegalStateException(failures.size() + " checks failed, the first: " + failures.get(0));
+		}
+		System.out.println("OK");
+	}
+
+	// press flat out while the control thread drains and serves; returns the presses made
+	private static long freeRun(ExecutorService pool, Elevator elevator, int producers, int pressesPerProducer)
+			throws Exception {
+		List<Future<?>> runs = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			int seed = p;
+			runs.add(pool.submit(() -> {
+				Random random = new Random(seed);
+				for (int i = 0; i < pressesPerProducer; i++) {
+					press(elevator, random.nextInt(3 * LEVELS));
+				}
+			}));
+		}
+		long start = System.nanoTime();
+		for (Future<?> run : runs) {
+			while (!run.isDone()) {
+				elevator.drainRequests();
+				elevator.openGate();
+			}
+			// rethrows whatever the producer threw
+			run.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		serveAll(elevator);
+		long presses = (long) producers * pressesPerProducer;
+		System.out.printf("free run: %.0f presses/s%n", presses * 1e9 / elapsed);
+		return presses;
+	}
+
+	private static void checkedRounds(ExecutorService pool, Elevator elevator, int producers, int rounds,
+			List<String> failures) throws Exception {
+		AtomicIntegerArray pressed = new AtomicIntegerArray(3 * LEVELS);
+		CyclicBarrier pressedAll = new CyclicBarrier(producers + 1);
+		CyclicBarrier nextRound = new CyclicBarrier(producers + 1);
+		List<Future<?>> runs = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			int seed = 1000 + p;
+			runs.add(pool.submit(() -> {
+				Random random = new Random(seed);
+				try {
+					for (int r = 0; r < rounds; r++) {
+						for (int i = 0; i < PRESSES_PER_ROUND; i++) {
+							int code = random.nextInt(3 * LEVELS);
+							press(elevator, code);
+							pressed.set(code, 1);
+						}
+						pressedAll.await();
+						nextRound.await();
+					}
+				} catch (RuntimeException e) {
+					// let the control thread out of the barrier instead of waiting forever
+					pressedAll.reset();
+					nextRound.reset();
+					throw e;
+				}
+				return null;
+			}));
+		}
+
+		for (int r = 0; r < rounds; r++) {
+			try {
+				pressedAll.await();
+			} catch (BrokenBarrierException e) {
+				throw producerFailure(runs, r);
+			}
+			int distinct = 0;
+			for (int code = 0; code < pressed.length(); code++) {
+				distinct += pressed.get(code);
+			}
+			int drained = elevator.drainRequests();
+			if (drained != distinct) {
+				failures.add("round " + r + " drained " + drained + " of " + distinct + " distinct presses");
+			}
+			for (int code = 0; code < pressed.length(); code++) {
+				if (pressed.get(code) == 1 && !isQueued(elevator, code)) {
+					failures.add("round " + r + " lost the press of button " + code);
+				}
+				pressed.set(code, 0);
+			}
+			serveAll(elevator);
+			try {
+				nextRound.await();
+			} catch (BrokenBarrierException e) {
+				throw producerFailure(runs, r);
+			}
+			if (!failures.isEmpty()) {
+				return;
+			}
+		}
+	}
+
+	// the exception of the producer that broke the barrier in round r
+	private static Exception producerFailure(List<Future<?>> runs, int r) throws InterruptedException {
+		for (Future<?> run : runs) {
+			if (run.isDone()) {
+				try {
+					run.get();
+				} catch (ExecutionException e) {
+					return e;
+				}
+			}
+		}
+		return new IllegalStateException("round " + r + " was broken off");
+	}
+
+	// code is kind * LEVELS + level - 1, kind 0 up, 1 down, 2 car call
+	private static void press(Elevator elevator, int code) {
+		int level = code % LEVELS + 1;
+		int kind = code / LEVELS;
+		if (kind == 2) {
+			elevator.submitInternalRequest(level);
+		} else {
+			elevator.submitExternalRequest(level, kind == 0 ? Direction.UP : Direction.DOWN);
+		}
+	}
+
+	private static boolean isQueued(Elevator elevator, int code) {
+		int level = code % LEVELS + 1;
+		int kind = code / LEVELS;
+		if (kind == 2) {
+			// a car call for the level the car is at is already served
+			return elevator.hasStopAt(level) || elevator.getCurrLevel() == level - 1;
+		}
+		return elevator.hasExternalRequest(level, kind == 0 ? Direction.UP : Direction.DOWN);
+	}
+
+	private static void serveAll(Elevator elevator) throws Exception {
+		while (elevator.drainRequests() > 0 || elevator.getPendingStops() > 0) {
+			elevator.openGate();
+		}
+		elevator.closeGate();
+	}
+}
@@ -0,0 +1,525 @@
+package Management System.DesignElevator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// synthetic traffic patterns of an office building, DAY strings them together over a day
+enum TrafficProfile {
+	UP_PEAK, DOWN_PEAK, LUNCH, RANDOM, DAY
+}
+
+/* Discrete-event simulator for an ElevatorBank. javac rejects the package line, whose
+   name has spaces, so compile a copy of this directory without it:
+     mkdir -p /tmp/elevator && for f in *.java; do sed '/^package /d' "$f" > /tmp/elevator/"$f"; done
+     javac -d /tmp/elevator /tmp/elevator/*.java && java -cp /tmp/elevator ElevatorSimulator [passengers] [trace-file]
+   Passengers arrive at a level, press the hall button and wait; the car that stops there
+   going their way boards them and they press their destination on the car's
+   ElevatorButton. Time is the elevator's logical clock (one tick per level travelled)
+   and runs are deterministic for a given seed. Every traffic profile is run under every
+   combination of scheduling and dispatch policy, with and without parking idle cars by
+   learned demand, reporting wait (arrival to boarding) and journey (arrival to
+   alighting) percentiles and floors travelled. A trace file holds one
+   "tick origin destination" line per passenger, e.g. replayed from the building's logs. */
+class ElevatorSimulator {
+	private static final int LEVELS = 20;
+	private static final int CARS = 4;
+	private static final int CAPACITY = 12;
+	// ticks the doors stay open when someone boards or alights
+	private static final int DWELL = 3;
+	// mean ticks between two passenger arrivals
+	private static final double MEAN_INTERARRIVAL = 2.0;
+	// the DAY profile: a day of DAY_TICKS in equal phases, each with its own traffic and
+	// mean ticks between arrivals, from a quiet night through the morning rush and lunch
+	// to the evening rush
+	private static final long DAY_TICKS = 24_000;
+	private static final TrafficProfile[] DAY_PHASES = {TrafficProfile.RANDOM, TrafficProfile.UP_PEAK,
+			TrafficProfile.RANDOM, TrafficProfile.LUNCH, TrafficProfile.RANDOM, TrafficProfile.DOWN_PEAK,
+			TrafficProfile.RANDOM, TrafficProfile.RANDOM};
+	private static final double[] DAY_INTERARRIVAL = {40, 3, 12, 4, 12, 3, 20, 40};
+	// the predictor for parking splits the day into hours and forgets a fifth per day
+	private static final int DEMAND_SLOTS = 24;
+	private static final double DEMAND_DECAY = 0.8;
+
+	// event kinds, in the order they are handled within one tick
+	private static final int ARRIVE = 0;
+	private static final int PASSENGER = 1;
+	private static final int DECIDE = 2;
+
+	private final ElevatorBank bank;
+	private final Elevator[] cars;
+	private final ElevatorButton[][] buttons;
+	private final boolean destinationDispatch;
+	private final EventQueue events = new EventQueue();
+
+	// passenger i arrives at arrivalTick[i] on origin[i] and rides to destination[i]
+	private final long[] arrivalTick;
+	private final int[] origin;
+	private final int[] destination;
+	private int nextPassenger;
+	private int delivered;
+
+	// passengers waiting at a level, index (level - 1) * 2 + (0 up, 1 down)
+	private final IntQueue[] waiting;
+	// passengers riding car c to a level, index c * LEVELS + level - 1
+	private final IntQueue[] riding;
+	private final int[] load;
+	private final boolean[] scheduled;
+	private long lastRebalance = -1;
+	// waiting queue a full car left passengers behind in, -1 if none
+	private final int[] recall;
+
+	private final Histogram waits = new Histogram();
+	private final Histogram journeys = new Histogram();
+
+	ElevatorSimulator(SchedulingPolicy scheduling, DispatchPolicy dispatch, boolean parking,
+			long[] _arrivalTick, int[] _origin, int[] _destination) {
+		arrivalTick = _arrivalTick;
+		origin = _origin;
+		destination = _destination;
+		destinationDispatch = dispatch == DispatchPolicy.DESTINATION_DISPATCH;
+		List<Elevator> list = new ArrayList<>();
+		cars = new Elevator[CARS];
+		buttons = new ElevatorButton[CARS][LEVELS];
+		for (int c = 0; c < CARS; c++) {
+			cars[c] = new Elevator(LEVELS, scheduling);
+			for (int l = 0; l < LEVELS; l++) {
+				buttons[c][l] = new ElevatorButton(l + 1, cars[c]);
+				cars[c].insertButton(buttons[c][l]);
+			}
+			list.add(cars[c]);
+		}
+		bank = new ElevatorBank(list, dispatch);
+		if (parking) {
+			bank.setDemandPredictor(new DemandPredictor(LEVELS, DAY_TICKS, DEMAND_SLOTS, DEMAND_DECAY));
+		}
+		waiting = new IntQueue[LEVELS * 2];
+		for (int i = 0; i < waiting.length; i++) {
+			waiting[i] = new IntQueue();
+		}
+		riding = new IntQueue[CARS * LEVELS];
+		for (int i = 0; i < riding.length; i++) {
+			riding[i] = new IntQueue();
+		}
+		load = new int[CARS];
+		scheduled = new boolean[CARS];
+		recall = new int[CARS];
+		Arrays.fill(recall, -1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int passengers = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		List<long[]> traces = new ArrayList<>();
+		List<String> names = new ArrayList<>();
+		if (args.length > 1) {
+			traces.add(loadTrace(args[1]));
+			names.add(args[1]);
+		} else {
+			for (TrafficProfile profile : TrafficProfile.values()) {
+				traces.add(generate(profile, passengers, new Random(42)));
+				names.add(profile.toString());
+			}
+		}
+		System.out.printf("%-10s %-5s %-20s %-4s %7s %7s %7s %7s %8s %8s %12s %12s%n", "traffic", "sched",
+				"dispatch", "park", "wait50", "wait90", "wait99", "journ50", "journ90", "journ99", "floors", "pax/s");
+		for (int t = 0; t < traces.size(); t++) {
+			long[] trace = traces.get(t);
+			int n = trace.length / 3;
+			long[] tick = new long[n];
+			int[] from = new int[n];
+			int[] to = new int[n];
+			for (int i = 0; i < n; i++) {
+				tick[i] = trace[i * 3];
+				from[i] = (int) trace[i * 3 + 1];
+				to[i] = (int) trace[i * 3 + 2];
+			}
+			for (SchedulingPolicy scheduling : SchedulingPolicy.values()) {
+				for (DispatchPolicy dispatch : DispatchPolicy.values()) {
+					for (boolean parking : new boolean[]{false, true}) {
+						ElevatorSimulator sim = new ElevatorSimulator(scheduling, dispatch, parking, tick, from, to);
+						long start = System.nanoTime();
+						sim.run();
+						double seconds = (System.nanoTime() - start) / 1e9;
+						System.out.printf("%-10s %-5s %-20s %-4s %7d %7d %7d %7d %8d %8d %12d %12.0f%n",
+								names.get(t), scheduling, dispatch, parking ? "on" : "off",
+								sim.waits.percentile(0.50), sim.waits.percentile(0.90),
+								sim.waits.percentile(0.99), sim.journeys.percentile(0.50),
+								sim.journeys.percentile(0.90), sim.journeys.percentile(0.99),
+								sim.floorsTravelled(), n / seconds);
+					}
+				}
+			}
+		}
+	}
+
+	public void run() throws Exception {
+		if (arrivalTick.length > 0) {
+			events.add(arrivalTick[0], PASSENGER, 0);
+		}
+		while (!events.isEmpty()) {
+			long event = events.poll();
+			long now = EventQueue.timeOf(event);
+			int car = EventQueue.carOf(event);
+			switch (EventQueue.kindOf(event)) {
+				case PASSENGER:
+					passengerArrives(now);
+					break;
+				case DECIDE:
+					decide(car, now);
+					break;
+				default:
+					carArrives(car, now);
+			}
+		}
+		if (delivered != arrivalTick.length) {
+			throw new IllegalStateException(delivered + " of " + arrivalTick.length + " passengers delivered");
+		}
+	}
+
+	public Histogram getWaits() {
+		return waits;
+	}
+
+	public Histogram getJourneys() {
+		return journeys;
+	}
+
+	public long floorsTravelled() {
+		long floors = 0;
+		for (Elevator car : cars) {
+			floors += car.getFloorsTravelled();
+		}
+		return floors;
+	}
+
+	private void passengerArrives(long now) {
+		advance(now);
+		int p = nextPassenger++;
+		if (nextPassenger < arrivalTick.length) {
+			events.add(arrivalTick[nextPassenger], PASSENGER, 0);
+		}
+		int queue = queueOf(origin[p], destination[p] > origin[p] ? Direction.UP : Direction.DOWN);
+		// the hall button is already lit for everyone after the first in line, while on a
+		// destination panel every passenger keys in their own level
+		if (destinationDispatch || waiting[queue].isEmpty()) {
+			callCar(p);
+		}
+		waiting[queue].add(p);
+		wakeIdleCars(now);
+	}
+
+	// pick the car's next stop and schedule its arrival there
+	private void decide(int c, long now) throws Exception {
+		Elevator car = cars[c];
+		if (car.getClock() < now) {
+			car.elapse(now - car.getClock());
+		}
+		advance(now);
+		if (car.getPendingStops() == 0) {
+			car.closeGate();
+			// the car may be sent to wait elsewhere now that it is idle
+			bank.parkIdleCars();
+			if (car.getPendingStops() == 0) {
+				scheduled[c] = false;
+				return;
+			}
+		}
+		car.openGate();
+		events.add(car.getClock(), ARRIVE, c);
+		// only now that the car is on its way can the call go out again, or the bank would
+		// hand it straight back to the full car standing at the level
+		if (recall[c] != -1) {
+			IntQueue left = waiting[recall[c]];
+			recall[c] = -1;
+			if (!left.isEmpty()) {
+				if (destinationDispatch) {
+					for (int i = 0; i < left.size(); i++) {
+						callCar(left.get(i));
+					}
+				} else {
+					callCar(left.peek());
+				}
+				wakeIdleCars(now);
+			}
+		}
+	}
+
+	private void carArrives(int c, long now) {
+		Elevator car = cars[c];
+		int level = car.getCurrLevel() + 1;
+		boolean doorsUsed = false;
+		IntQueue alighting = riding[c * LEVELS + level - 1];
+		while (!alighting.isEmpty()) {
+			int p = alighting.poll();
+			journeys.record(now - arrivalTick[p]);
+			load[c]--;
+			delivered++;
+			doorsUsed = true;
+		}
+		Direction direction = car.getStatus() == Status.DOWN ? Direction.DOWN : Direction.UP;
+		IntQueue boarding = waiting[queueOf(level, direction)];
+		while (!boarding.isEmpty() && load[c] < CAPACITY) {
+			int p = boarding.poll();
+			waits.record(now - arrivalTick[p]);
+			riding[c * LEVELS + destination[p] - 1].add(p);
+			load[c]++;
+			buttons[c][destination[p] - 1].pressButton();
+			doorsUsed = true;
+		}
+		// the call is answered for every car; whoever did not fit presses the button again
+		// once the car has left
+		for (Elevator other : cars) {
+			other.cancelExternalRequest(level, direction);
+		}
+		if (!boarding.isEmpty()) {
+			recall[c] = queueOf(level, direction);
+		}
+		events.add(doorsUsed ? now + DWELL : now, DECIDE, c);
+	}
+
+	private void callCar(int p) {
+		if (destinationDispatch) {
+			bank.handleExternalRequest(new DestinationRequest(origin[p], destination[p]));
+		} else {
+			Direction direction = destination[p] > origin[p] ? Direction.UP : Direction.DOWN;
+			bank.handleExternalRequest(new ExternalRequest(origin[p], direction));
+		}
+	}
+
+	// the cars only move between ticks, so the bank needs to look at them once per tick
+	private void advance(long now) {
+		if (now != lastRebalance) {
+			lastRebalance = now;
+			bank.tick(now);
+			wakeIdleCars(now);
+		}
+	}
+
+	private void wakeIdleCars(long now) {
+		for (int c = 0; c < CARS; c++) {
+			if (!scheduled[c] && cars[c].getPendingStops() > 0) {
+				scheduled[c] = true;
+				events.add(now, DECIDE, c);
+			}
+		}
+	}
+
+	private static int queueOf(int level, Direction direction) {
+		return (level - 1) * 2 + (direction == Direction.UP ? 0 : 1);
+	}
+
+	// passengers as consecutive (tick, origin, destination) triples
+	static long[] generate(TrafficProfile profile, int passengers, Random random) {
+		long[] trace = new long[passengers * 3];
+		double time = 0;
+		for (int i = 0; i < passengers; i++) {
+			TrafficProfile current = profile;
+			double mean = MEAN_INTERARRIVAL;
+			if (profile == TrafficProfile.DAY) {
+				int phase = (int) ((long) time % DAY_TICKS * DAY_PHASES.length / DAY_TICKS);
+				current = DAY_PHASES[phase];
+				mean = DAY_INTERARRIVAL[phase];
+			}
+			time += -Math.log(1 - random.nextDouble()) * mean;
+			int from;
+			int to;
+			double r = random.nextDouble();
+			switch (current) {
+				case UP_PEAK:
+					// mostly arrivals in the lobby heading to their floor
+					from = r < 0.85 ? 1 : upperLevel(random);
+					to = r < 0.95 ? otherLevel(from, random) : 1;
+					break;
+				case DOWN_PEAK:
+					from = r < 0.95 ? upperLevel(random) : 1;
+					to = r < 0.85 ? 1 : otherLevel(from, random);
+					break;
+				case LUNCH:
+					// half going out, half coming back, some moving between floors
+					from = r < 0.45 ? upperLevel(random) : r < 0.9 ? 1 : upperLevel(random);
+					to = r < 0.45 ? 1 : otherLevel(from, random);
+					break;
+				default:
+					from = 1 + random.nextInt(LEVELS);
+					to = otherLevel(from, random);
+			}
+			if (to == from) {
+				to = otherLevel(from, random);
+			}
+			trace[i * 3] = (long) time;
+			trace[i * 3 + 1] = from;
+			trace[i * 3 + 2] = to;
+		}
+		return trace;
+	}
+
+	private static int upperLevel(Random random) {
+		return 2 + random.nextInt(LEVELS - 1);
+	}
+
+	private static int otherLevel(int level, Random random) {
+		int other = 1 + random.nextInt(LEVELS - 1);
+		return other >= level ? other + 1 : other;
+	}
+
+	static long[] loadTrace(String path) throws IOException {
+		List<long[]> rows = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				long tick = Long.parseLong(parts[0]);
+				int from = Integer.parseInt(parts[1]);
+				int to = Integer.parseInt(parts[2]);
+				if (from < 1 || from > LEVELS || to < 1 || to > LEVELS || from == to) {
+					throw new IllegalArgumentException("bad trace line: " + line);
+				}
+				rows.add(new long[]{tick, from, to});
+			}
+		}
+		// the event loop expects passengers in arrival order
+		rows.sort((a, b) -> Long.compare(a[0], b[0]));
+		long[] trace = new long[rows.size() * 3];
+		for (int i = 0; i < rows.size(); i++) {
+			System.arraycopy(rows.get(i), 0, trace, i * 3, 3);
+		}
+		return trace;
+	}
+}
+
+/* Binary min-heap of events packed into longs: tick << 24 | kind << 16 | car.
+   Ties on the tick are broken by kind and then car, which keeps runs deterministic,
+   and nothing is boxed on the way in or out. */
+class EventQueue {
+	private long[] heap = new long[64];
+	private int size;
+
+	static long timeOf(long event) {
+		return event >>> 24;
+	}
+
+	static int kindOf(long event) {
+		return (int) (event >>> 16) & 0xFF;
+	}
+
+	static int carOf(long event) {
+		return (int) event & 0xFFFF;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void add(long tick, int kind, int car) {
+		if (size == heap.length) {
+			heap = Arrays.copyOf(heap, size * 2);
+		}
+		long event = tick << 24 | (long) kind << 16 | car;
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (heap[parent] <= event) {
+				break;
+			}
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = event;
+	}
+
+	public long poll() {
+		long top = heap[0];
+		long last = heap[--size];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heap[child + 1] < heap[child]) {
+				child++;
+			}
+			if (heap[child] >= last) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = last;
+		return top;
+	}
+}
+
+// growable FIFO of passenger ids
+class IntQueue {
+	private int[] items = new int[16];
+	private int head;
+	private int size;
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void add(int item) {
+		if (size == items.length) {
+			int[] grown = new int[size * 2];
+			for (int i = 0; i < size; i++) {
+				grown[i] = items[(head + i) % items.length];
+			}
+			items = grown;
+			head = 0;
+		}
+		items[(head + size++) % items.length] = item;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int peek() {
+		return items[head];
+	}
+
+	// the i-th item from the head
+	public int get(int i) {
+		return items[(head + i) % items.length];
+	}
+
+	public int poll() {
+		int item = items[head];
+		head = (head + 1) % items.length;
+		size--;
+		return item;
+	}
+}
+
+// counts of tick durations, exact below the bucket count and clamped above it
+class Histogram {
+	private final long[] counts = new long[1 << 16];
+	private long total;
+
+	public void record(long ticks) {
+		counts[(int) Math.min(ticks, counts.length - 1)]++;
+		total++;
+	}
+
+	public long percentile(double p) {
+		long rank = (long) Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return i;
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,213 @@
+package Management System.DesignElevator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Telemetry of one Elevator, see Elevator.getTelemetry(). Only the control thread writes,
+   so every counter is a plain get + lazySet on an atomic array: no contention and no
+   allocation in the control loop, while a dashboard thread can read at any time. */
+class ElevatorTelemetry {
+	// bucket b counts durations of [2^b, 2^(b+1)) ticks, bucket 0 also holds 0
+	private static final int BUCKETS = 20;
+
+	private int numLevels;
+	// index ((level - 1) * 2 + (0 up, 1 down)) * BUCKETS + bucket
+	private AtomicLongArray waits;
+	private AtomicLongArray rides;
+	private AtomicLongArray stops;
+	private AtomicLong ticks;
+	private AtomicLong idleTicks;
+	private ElevatorStatusFeed feed;
+
+	public ElevatorTelemetry(int _numLevels) {
+		numLevels = _numLevels;
+		waits = new AtomicLongArray(numLevels * 2 * BUCKETS);
+		rides = new AtomicLongArray(numLevels * 2 * BUCKETS);
+		stops = new AtomicLongArray(numLevels);
+		ticks = new AtomicLong();
+		idleTicks = new AtomicLong();
+		feed = new ElevatorStatusFeed(1 << 10);
+	}
+
+	// hall call to pickup at level (0-based) in the given direction
+	void recordPickup(int level, boolean up, long waited) {
+		increment(waits, bucketIndex(level, up, waited));
+	}
+
+	// car call to dropoff at level (0-based), arriving in the given direction
+	void recordDropoff(int level, boolean up, long rode) {
+		increment(rides, bucketIndex(level, up, rode));
+	}
+
+	void recordStop(int level) {
+		increment(stops, level);
+	}
+
+	void recordElapsed(long elapsed, boolean idle) {
+		ticks.lazySet(ticks.get() + elapsed);
+		if (idle) {
+			idleTicks.lazySet(idleTicks.get() + elapsed);
+		}
+	}
+
+	void recordState(long tick, Status status, int level) {
+		feed.publish(ElevatorStatusFeed.pack(tick, status, level));
+	}
+
+	private int bucketIndex(int level, boolean up, long duration) {
+		int bucket = 63 - Long.numberOfLeadingZeros(duration | 1);
+		return (level * 2 + (up ? 0 : 1)) * BUCKETS + Math.min(bucket, BUCKETS - 1);
+	}
+
+	private static void increment(AtomicLongArray counts, int i) {
+		counts.lazySet(i, counts.get(i) + 1);
+	}
+
+	// upper bound in ticks of the wait below which the given fraction of pickups at level fall
+	public long getWaitPercentile(int level, Direction direction, double fraction) {
+		return percentile(waits, level, direction, fraction);
+	}
+
+	// upper bound in ticks of the ride below which the given fraction of dropoffs at level fall
+	public long getRidePercentile(int level, Direction direction, double fraction) {
+		return percentile(rides, level, direction, fraction);
+	}
+
+	// counts per power-of-two bucket, bucket b covering [2^b, 2^(b+1)) ticks
+	public long[] getWaitHistogram(int level, Direction direction) {
+		return histogram(waits, level, direction);
+	}
+
+	public long[] getRideHistogram(int level, Direction direction) {
+		return histogram(rides, level, direction);
+	}
+
+	public long getStopCount(int level) {
+		return stops.get(level - 1);
+	}
+
+	// share of the elevator's time spent idle, not moving or serving a stop
+	public double getIdleRatio() {
+		long total = ticks.get();
+		return total == 0 ? 0 : (double) idleTicks.get() / total;
+	}
+
+	public ElevatorStatusFeed getFeed() {
+		return feed;
+	}
+
+	private long[] histogram(AtomicLongArray counts, int level, Direction direction) {
+		int base = ((level - 1) * 2 + (direction == Direction.UP ? 0 : 1)) * BUCKETS;
+		long[] histogram = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++) {
+			histogram[b] = counts.get(base + b);
+		}
+		return histogram;
+	}
+
+	private long percentile(AtomicLongArray counts, int level, Direction direction, double fraction) {
+		long[] histogram = histogram(counts, level, direction);
+		long total = 0;
+		for (long c : histogram) {
+			total += c;
+		}
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += histogram[b];
+			if (seen > 0 && seen >= fraction * total) {
+				return 1L << (b + 1);
+			}
+		}
+		return 0;
+	}
+}
+
+/* Status transitions of an elevator as packed longs: tick << 24 | status << 20 | level.
+   The control thread overwrites the oldest entry when the ring is full and never waits
+   for readers. Each slot carries the sequence number of the entry in it, written after
+   the entry, so a reader that raced with an overwrite sees the mismatch and skips ahead
+   instead of returning a torn entry. */
+class ElevatorStatusFeed {
+	private static final Status[] STATUSES = Status.values();
+
+	private AtomicLongArray entries;
+	private AtomicLongArray sequences;
+	private AtomicLong published;
+
+	public ElevatorStatusFeed(int capacity) {
+		entries = new AtomicLongArray(capacity);
+		sequences = new AtomicLongArray(capacity);
+		published = new AtomicLong();
+	}
+
+	static long pack(long tick, Status status, int level) {
+		return tick << 24 | (long) status.ordinal() << 20 | level;
+	}
+
+	public static long tickOf(long entry) {
+		return entry >>> 24;
+	}
+
+	public static Status statusOf(long entry) {
+		return STATUSES[(int) (entry >>> 20) & 0xF];
+	}
+
+	// 1-based level
+	public static int levelOf(long entry) {
+		return (int) entry & 0xFFFFF;
+	}
+
+	// single writer
+	void publish(long entry) {
+		long seq = published.get();
+		int slot = (int) (seq % entries.length());
+		sequences.set(slot, -1);
+		entries.set(slot, entry);
+		sequences.set(slot, seq);
+		published.set(seq + 1);
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	// a reader's position in the feed, starting with the next transition
+	public Subscription subscribe() {
+		return new Subscription(published.get());
+	}
+
+	class Subscription {
+		private long next;
+		private long missed;
+
+		private Subscription(long _next) {
+			next = _next;
+		}
+
+		// copy the transitions since the last poll into out and return how many were copied
+		public int poll(long[] out) {
+			int n = 0;
+			while (n < out.length && next < published.get()) {
+				long oldest = published.get() - entries.length();
+				if (next < oldest) {
+					missed += oldest - next;
+					next = oldest;
+				}
+				int slot = (int) (next % entries.length());
+				long entry = entries.get(slot);
+				if (sequences.get(slot) != next) {
+					// overwritten while we read it; the check above moves us on
+					continue;
+				}
+				out[n++] = entry;
+				next++;
+			}
+			return n;
+		}
+
+		// transitions overwritten before this subscriber got to them
+		public long getMissed() {
+			return missed;
+		}
+	}
+}
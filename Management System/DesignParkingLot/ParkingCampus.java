@@ -0,0 +1,138 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* A campus of garages, one ParkingLot each, behind a single entry point.
+   Every lot is a shard with its own single-thread executor, so admission for different
+   garages runs on different cores. A vehicle is routed to the lot that can take its size
+   and has the most free spots, read from the lots' O(1) availability summaries, and
+   spills over to the next best lot when that one turns it away. A global plate index
+   remembers which lot each vehicle ended up in. */
+class ParkingCampus {
+    // placeholder in the plate index while a vehicle is being routed
+    private static final CampusSpot ROUTING = new CampusSpot(-1, null);
+
+    private ParkingLot[] lots;
+    private ExecutorService[] shards;
+    private ConcurrentHashMap<String, CampusSpot> plateIndex;
+
+    public ParkingCampus(ParkingLot[] _lots) {
+        lots = _lots;
+        shards = new ExecutorService[lots.length];
+        for (int i = 0; i < lots.length; i++) {
+            shards[i] = Executors.newSingleThreadExecutor();
+        }
+        plateIndex = new ConcurrentHashMap<>();
+    }
+
+    public ParkingLot[] getLots() {
+        return lots;
+    }
+
+    public int getAvailableSpots() {
+        int sum = 0;
+        for (ParkingLot lot : lots) {
+            sum += lot.getAvailableSpots();
+        }
+        return sum;
+    }
+
+    // where the vehicle is parked on the campus, null if it is not
+    public CampusSpot findVehicle(String licensePlate) {
+        CampusSpot spot = plateIndex.get(licensePlate);
+        return spot == ROUTING ? null : spot;
+    }
+
+    // Completes with where the vehicle parked, or null if no lot could take it
+    // or the vehicle is already on the campus. Completes exceptionally if a lot threw,
+    // and the vehicle may then be parked again.
+    public CompletableFuture<CampusSpot> parkVehicle(Vehicle vehicle) {
+        String licensePlate = vehicle.getLicensePlate();
+        if (plateIndex.putIfAbsent(licensePlate, ROUTING) != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<CampusSpot> routed;
+        try {
+            routed = parkOnBestLot(vehicle, new boolean[lots.length]);
+        } catch (RuntimeException e) {
+            // e.g. the shard was shut down and refused the task
+            plateIndex.remove(licensePlate, ROUTING);
+            throw e;
+        }
+        // without this a failed park would leave the plate routing forever
+        return routed.whenComplete((spot, e) -> {
+            if (e != null) {
+                plateIndex.remove(licensePlate, ROUTING);
+            }
+        });
+    }
+
+    // completes with false if the vehicle was not parked on the campus
+    public CompletableFuture<Boolean> unParkVehicle(Vehicle vehicle) {
+        CampusSpot spot = plateIndex.get(vehicle.getLicensePlate());
+        if (spot == null || spot == ROUTING || !plateIndex.remove(vehicle.getLicensePlate(), spot)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            lots[spot.getLotIdx()].unParkVehicle(vehicle);
+            return true;
+        }, shards[spot.getLotIdx()]);
+    }
+
+    public void shutdown() {
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    private CompletableFuture<CampusSpot> parkOnBestLot(Vehicle vehicle, boolean[] tried) {
+        int lotIdx = bestLot(vehicle.getVehicleSize(), tried);
+        if (lotIdx == -1) {
+            plateIndex.remove(vehicle.getLicensePlate(), ROUTING);
+            return CompletableFuture.completedFuture(null);
+        }
+        tried[lotIdx] = true;
+        ParkingLot lot = lots[lotIdx];
+        return CompletableFuture.supplyAsync(() -> {
+            if (!lot.parkVehicle(vehicle)) {
+                return null;
+            }
+            CampusSpot spot = new CampusSpot(lotIdx, lot.getParkingSpot(vehicle.getLicensePlate()));
+            plateIndex.put(vehicle.getLicensePlate(), spot);
+            return spot;
+        }, shards[lotIdx]).thenCompose(spot -> spot != null
+                ? CompletableFuture.completedFuture(spot)
+                : parkOnBestLot(vehicle, tried));
+    }
+
+    // untried lot that can take the size and has the most free spots, -1 if there is none
+    private int bestLot(VehicleSize size, boolean[] tried) {
+        int best = -1;
+        for (int i = 0; i < lots.length; i++) {
+            if (!tried[i] && lots[i].canFit(size)
+                    && (best == -1 || lots[i].getAvailableSpots() > lots[best].getAvailableSpots())) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
+
+class CampusSpot {
+    private int lotIdx;
+    private ConsecutiveSpot spot;
+
+    public CampusSpot(int _lotIdx, ConsecutiveSpot _spot) {
+        lotIdx = _lotIdx;
+        spot = _spot;
+    }
+
+    public int getLotIdx() {
+        return lotIdx;
+    }
+
+    public ConsecutiveSpot getSpot() {
+        return spot;
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Durable occupancy for a ParkingLot.
+   Every park/unpark, and every booking made or cancelled through the lot's
+   ParkingReservations, is appended to a memory-mapped journal. Appending only writes to
+   memory; a background thread forces the dirty pages to disk every flush interval, so
+   all events of that interval share one sync and the gates never wait on the disk.
+   checkpoint() writes a compact snapshot of the row bitsets, plate index and bookings and
+   starts a fresh journal; recover() rebuilds a lot from the snapshot plus the journal
+   after it.
+
+   Files in the directory:
+     snapshot.bin     epoch, lot dimensions, every row bitset, every parked plate, every booking
+     journal-<epoch>  events since the snapshot of that epoch */
+class ParkingJournal implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x504C534E;
+    private static final byte OP_END = 0;
+    private static final byte OP_PARK = 1;
+    private static final byte OP_UNPARK = 2;
+    private static final byte OP_NEXT_CHUNK = 3;
+    private static final byte OP_BOOK = 4;
+    private static final byte OP_CANCEL = 5;
+    // op, id, spot, size, from, to
+    private static final int BOOKING_RECORD_SIZE = 1 + 8 + 8 + 1 + 8 + 8;
+    private static final int CHUNK_SIZE = 1 << 24;
+
+    private Path directory;
+    private long flushIntervalMillis;
+    private long epoch;
+    private FileChannel channel;
+    private volatile MappedByteBuffer chunk;
+    private int chunkIdx;
+    private volatile boolean closed;
+    private Thread flusher;
+    // the lot recover() attached this journal to, detached again by close()
+    private ParkingLot lot;
+
+    public ParkingJournal(Path _directory, long _flushIntervalMillis) {
+        directory = _directory;
+        flushIntervalMillis = _flushIntervalMillis;
+    }
+
+    // Rebuild the lot from the latest snapshot and journal in the directory (an empty lot
+    // if there are none), attach this journal to it and start journaling.
+    public ParkingLot recover(int numOfLevels, int numOfRows, int numSpotsPerRow) throws IOException {
+        Files.createDirectories(directory);
+        ParkingLot recovered = new ParkingLot(numOfLevels, numOfRows, numSpotsPerRow);
+        epoch = 0;
+        Path snapshot = directory.resolve("snapshot.bin");
+        if (Files.exists(snapshot)) {
+            epoch = readSnapshot(snapshot, recovered);
+        }
+        deleteStaleFiles();
+        openJournal();
+        replay(recovered);
+        lot = recovered;
+        lot.attachJournal(this);
+        flusher = new Thread(this::flushLoop, "parking-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        return lot;
+    }
+
+    // A crash during checkpoint can leave the journal of the epoch before the snapshot,
+    // or a half-written snapshot; neither is needed once the snapshot has been read.
+    private void deleteStaleFiles() throws IOException {
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(directory, "journal-*")) {
+            for (Path journal : journals) {
+                if (!journal.equals(journalPath(epoch))) {
+                    Files.delete(journal);
+                }
+            }
+        }
+        Files.deleteIfExists(directory.resolve("snapshot.bin.tmp"));
+    }
+
+    public synchronized void logPark(String licensePlate, long spot) {
+        append(OP_PARK, licensePlate, spot);
+    }
+
+    public synchronized void logUnpark(String licensePlate) {
+        append(OP_UNPARK, licensePlate, -1);
+    }
+
+    public synchronized void logBook(Booking booking) {
+        appendBooking(OP_BOOK, booking);
+    }
+
+    // a booking cancelled, or dropped because its vehicle redeemed it
+    public synchronized void logCancel(Booking booking) {
+        appendBooking(OP_CANCEL, booking);
+    }
+
+    // force everything appended so far to disk now instead of at the next flush
+    public void sync() {
+        chunk.force();
+    }
+
+    // Called by ParkingLot.checkpoint with every gate paused. The snapshot of the next
+    // epoch is written to a temp file and renamed over the old one, and only then is the
+    // new journal started, so a crash at any point leaves a snapshot/journal pair of the
+    // same epoch (or a newer snapshot whose stale journal recover deletes).
+    synchronized void checkpoint(ParkingLot lot) throws IOException {
+        long newEpoch = epoch + 1;
+        Path tmp = directory.resolve("snapshot.bin.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(newEpoch);
+            out.writeInt(lot.getNumOfLevels());
+            out.writeInt(lot.getNumOfRows());
+            out.writeInt(lot.getNumSpotsPerRow());
+            for (Level l : lot.getLevels()) {
+                for (Row r : l.getRows()) {
+                    for (long word : r.getOccupiedWords()) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+            Map<String, ConsecutiveSpot> parkingMap = lot.getParkingMap();
+            out.writeInt(parkingMap.size());
+            for (Map.Entry<String, ConsecutiveSpot> e : parkingMap.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().toPacked());
+            }
+            List<Booking> bookings = lot.getReservations().getBookings();
+            out.writeInt(bookings.size());
+            for (Booking b : bookings) {
+                out.writeLong(b.getId());
+                out.writeLong(b.getSpot());
+                out.writeByte(b.getSize().ordinal());
+                out.writeLong(b.getFrom());
+                out.writeLong(b.getTo());
+            }
+        }
+        Files.move(tmp, directory.resolve("snapshot.bin"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        Path oldJournal = journalPath(epoch);
+        channel.close();
+        epoch = newEpoch;
+        openJournal();
+        Files.deleteIfExists(oldJournal);
+    }
+
+    // Detach from the lot first, waiting for gates in the middle of a journaled park or
+    // unpark, so later events are not journaled at all instead of written to a closed
+    // file. Writing to the journal directly after close throws IllegalStateException.
+    @Override
+    public void close() throws IOException {
+        if (lot != null) {
+            lot.detachJournal(this);
+        }
+        closed = true;
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        synchronized (this) {
+            chunk.force();
+            channel.close();
+        }
+    }
+
+    private Path journalPath(long e) {
+        return directory.resolve("journal-" + e);
+    }
+
+    private void openJournal() throws IOException {
+        channel = FileChannel.open(journalPath(epoch), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        chunkIdx = 0;
+        chunk = mapChunk(0);
+    }
+
+    private MappedByteBuffer mapChunk(int idx) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long) idx * CHUNK_SIZE, CHUNK_SIZE);
+    }
+
+    // Record: op, spot, plate length, plate chars. The op byte is written last and the
+    // byte after the record is cleared first, so a reader stops at the last whole record.
+    private void append(byte op, String licensePlate, long spot) {
+        int length = licensePlate.length();
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("License plate too long to journal: " + length);
+        }
+        int recordSize = 1 + 8 + 2 + 2 * length;
+        MappedByteBuffer buf = reserve(recordSize);
+        int pos = buf.position();
+        buf.putLong(pos + 1, spot);
+        buf.putShort(pos + 9, (short) length);
+        for (int i = 0; i < length; i++) {
+            buf.putChar(pos + 11 + 2 * i, licensePlate.charAt(i));
+        }
+        buf.put(pos, op);
+        buf.position(pos + recordSize);
+    }
+
+    // Record: op, id, spot, size, from, to; written in the same order as a plate record.
+    private void appendBooking(byte op, Booking booking) {
+        MappedByteBuffer buf = reserve(BOOKING_RECORD_SIZE);
+        int pos = buf.position();
+        buf.putLong(pos + 1, booking.getId());
+        buf.putLong(pos + 9, booking.getSpot());
+        buf.put(pos + 17, (byte) booking.getSize().ordinal());
+        buf.putLong(pos + 18, booking.getFrom());
+        buf.putLong(pos + 26, booking.getTo());
+        buf.put(pos, op);
+        buf.position(pos + BOOKING_RECORD_SIZE);
+    }
+
+    // the chunk to write a record of recordSize bytes to at its position, moving on to the
+    // next chunk if it does not fit; the byte after the record is already cleared
+    private MappedByteBuffer reserve(int recordSize) {
+        if (closed) {
+            throw new IllegalStateException("The parking journal is closed");
+        }
+        MappedByteBuffer buf = chunk;
+        int pos = buf.position();
+        if (pos + recordSize + 1 > CHUNK_SIZE) {
+            try {
+                buf = mapChunk(++chunkIdx);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not grow the parking journal", e);
+            }
+            buf.put(0, OP_END);
+            chunk.put(pos, OP_NEXT_CHUNK);
+            chunk.force();
+            chunk = buf;
+            pos = 0;
+        }
+        buf.put(pos + recordSize, OP_END);
+        return buf;
+    }
+
+    // apply every record of the current journal to the lot and leave the write position at the end
+    private void replay(ParkingLot lot) throws IOException {
+        MappedByteBuffer buf = chunk;
+        int pos = 0;
+        while (true) {
+            byte op = buf.get(pos);
+            if (op == OP_END) {
+                break;
+            }
+            if (op == OP_NEXT_CHUNK) {
+                buf = mapChunk(++chunkIdx);
+                pos = 0;
+                continue;
+            }
+            if (op == OP_BOOK || op == OP_CANCEL) {
+                Booking booking = new Booking(buf.getLong(pos + 1), buf.getLong(pos + 9),
+                        VehicleSize.values()[buf.get(pos + 17)], buf.getLong(pos + 18), buf.getLong(pos + 26));
+                if (op == OP_BOOK) {
+                    lot.getReservations().recoverBooking(booking);
+                } else {
+                    lot.getReservations().cancel(booking);
+                }
+                pos += BOOKING_RECORD_SIZE;
+                continue;
+            }
+            long spot = buf.getLong(pos + 1);
+            int length = buf.getShort(pos + 9) & 0xFFFF;
+            char[] plate = new char[length];
+            for (int i = 0; i < length; i++) {
+                plate[i] = buf.getChar(pos + 11 + 2 * i);
+            }
+            if (op == OP_PARK) {
+                lot.restorePark(new String(plate), spot);
+            } else {
+                lot.restoreUnpark(new String(plate));
+            }
+            pos += 1 + 8 + 2 + 2 * length;
+        }
+        buf.position(pos);
+        chunk = buf;
+    }
+
+    // load the row bitsets and plate index of the snapshot into the lot, return its epoch
+    private long readSnapshot(Path snapshot, ParkingLot lot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a parking lot snapshot: " + snapshot);
+            }
+            long snapshotEpoch = in.readLong();
+            if (in.readInt() != lot.getNumOfLevels() || in.readInt() != lot.getNumOfRows()
+                    || in.readInt() != lot.getNumSpotsPerRow()) {
+                throw new IOException("Snapshot was taken of a parking lot with different dimensions");
+            }
+            long[] words = new long[(lot.getNumSpotsPerRow() + 63) >>> 6];
+            for (Level l : lot.getLevels()) {
+                for (Row r : l.getRows()) {
+                    for (int w = 0; w < words.length; w++) {
+                        words[w] = in.readLong();
+                    }
+                    r.restoreOccupiedWords(words);
+                }
+            }
+            int numParked = in.readInt();
+            Map<String, Long> spots = new HashMap<>();
+            for (int i = 0; i < numParked; i++) {
+                String licensePlate = in.readUTF();
+                spots.put(licensePlate, in.readLong());
+            }
+            lot.restoreSnapshot(spots);
+            int numBookings = in.readInt();
+            VehicleSize[] sizes = VehicleSize.values();
+            for (int i = 0; i < numBookings; i++) {
+                lot.getReservations().recoverBooking(new Booking(in.readLong(), in.readLong(),
+                        sizes[in.readByte()], in.readLong(), in.readLong()));
+            }
+            return snapshotEpoch;
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            chunk.force();
+        }
+    }
+}
@@ -1,8 +1,29 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
 // enum type for Vehicle
 enum VehicleSize {
-    Motorcycle,
-    Compact,
-    Large,
+    Motorcycle(1),
+    Compact(1),
+    Large(5);
+
+    private final int spotsNeeded;
+
+    VehicleSize(int _spotsNeeded) {
+        spotsNeeded = _spotsNeeded;
+    }
+
+    // number of consecutive spots a vehicle of this size takes
+    public int getSpotsNeeded() {
+        return spotsNeeded;
+    }
 }
 
 abstract class Vehicle {
@@ -41,17 +62,73 @@ class ParkingLot {
     private int numOfRows;
     private int numSpotsPerRow;
     private Level[] levels;
-    private Map<String, ConsecutiveSpot> parkingMap;
+    // plate -> packed spot, split into stripes that are locked independently
+    private PlateIndex[] plateStripes;
+    // lot-wide totals of the level summaries, kept up to date on park/unpark
+    private AtomicInteger availableSpots;
+    private AtomicInteger compactZoneSpots;
+    private AtomicInteger rowsWithLargeRun;
+    private volatile SpotAllocationStrategy allocationStrategy;
+    // when set, every park/unpark is journaled; park/unpark hold the read side of
+    // checkpointLock so a checkpoint sees the lot and the journal at a quiet point
+    private volatile ParkingJournal journal;
+    private StampedLock checkpointLock;
+    private ParkingLotMetrics metrics;
+    private ParkingReservations reservations;
+
+    private static final int NUM_PLATE_STRIPES = 16;
 
+    // throws IllegalArgumentException for dimensions a packed ConsecutiveSpot can not hold
     public ParkingLot(int _numOfLevels, int _numOfRows, int _numSpotsPerRow) {
+        checkDimension("levels", _numOfLevels, ConsecutiveSpot.MAX_LEVELS);
+        checkDimension("rows per level", _numOfRows, ConsecutiveSpot.MAX_ROWS);
+        checkDimension("spots per row", _numSpotsPerRow, ConsecutiveSpot.MAX_SPOTS_PER_ROW);
+        // the spot counters are ints
+        if ((long) _numOfLevels * _numOfRows * _numSpotsPerRow > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A lot of " + _numOfLevels + " x " + _numOfRows + " x "
+                    + _numSpotsPerRow + " spots is too large to count");
+        }
         numOfLevels = _numOfLevels;
         numOfRows = _numOfRows;
         numSpotsPerRow = _numSpotsPerRow;
         levels = new Level[numOfLevels];
         for (int i = 0; i < numOfLevels; i++) {
-            levels[i] = new Level(numOfRows, numSpotsPerRow);
+            levels[i] = new Level(i, numOfRows, numSpotsPerRow);
+        }
+        plateStripes = new PlateIndex[NUM_PLATE_STRIPES];
+        for (int i = 0; i < NUM_PLATE_STRIPES; i++) {
+            plateStripes[i] = new PlateIndex();
+        }
+        availableSpots = new AtomicInteger();
+        compactZoneSpots = new AtomicInteger();
+        rowsWithLargeRun = new AtomicInteger();
+        allocationStrategy = new FirstFitStrategy();
+        checkpointLock = new StampedLock();
+        metrics = new ParkingLotMetrics(levels);
+        reservations = new ParkingReservations(levels, ParkingReservations.DEFAULT_HORIZON_MILLIS);
+        rebuildSummaries();
+    }
+
+    private static void checkDimension(String name, int value, int max) {
+        if (value < 1 || value > max) {
+            throw new IllegalArgumentException("A parking lot needs 1 to " + max + " " + name + ", got " + value);
+        }
+    }
+
+    // recount the lot-wide totals from the level summaries
+    private void rebuildSummaries() {
+        int available = 0;
+        int compact = 0;
+        int largeRuns = 0;
+        for (Level l : levels) {
+            l.rebuildSummaries();
+            available += l.getAvailableSpots();
+            compact += l.getCompactZoneSpots();
+            largeRuns += l.getRowsWithLargeRun();
         }
-        parkingMap = new HashMap<>();
+        availableSpots.set(available);
+        compactZoneSpots.set(compact);
+        rowsWithLargeRun.set(largeRuns);
     }
 
     public int getNumOfLevels() {
@@ -71,85 +148,533 @@ class ParkingLot {
     }
 
     public int getAvailableSpots() {
-        int sum = 0;
+        return availableSpots.get();
+    }
+
+    // O(1) check whether any level still has room for the given size
+    public boolean canFit(VehicleSize size) {
+        if (size == VehicleSize.Motorcycle) {
+            return availableSpots.get() > 0;
+        } else if (size == VehicleSize.Compact) {
+            return compactZoneSpots.get() > 0;
+        }
+        return rowsWithLargeRun.get() > 0;
+    }
+
+    // Take the packed spot if all of it is still free. Every write to a level and its
+    // rows happens while holding that level's monitor, so two gates can never claim
+    // overlapping spots; the lot-wide totals are atomics updated with the deltas.
+    // Spots booked to start within the reservation horizon count as taken.
+    private boolean claimSpots(long spot) {
+        Level level = levels[ConsecutiveSpot.levelOf(spot)];
+        synchronized (level) {
+            Row row = level.getRows()[ConsecutiveSpot.rowOf(spot)];
+            int startPos = ConsecutiveSpot.startPosOf(spot);
+            int length = ConsecutiveSpot.lengthOf(spot);
+            if (!row.isFree(startPos, length) || row.isHeldForBooking(startPos, length)) {
+                return false;
+            }
+            setOccupiedSpots(spot, true);
+            return true;
+        }
+    }
+
+    // Take the spots of a booking for the vehicle it was made for: the booking is dropped
+    // and its spots claimed in one step, and put back if they are not free after all.
+    private boolean claimBookedSpots(Booking booking) {
+        long spot = booking.getSpot();
+        Level level = levels[ConsecutiveSpot.levelOf(spot)];
+        synchronized (level) {
+            if (!reservations.cancel(booking)) {
+                return false;
+            }
+            if (claimSpots(spot)) {
+                return true;
+            }
+            reservations.restore(booking);
+            return false;
+        }
+    }
+
+    // take or release spots through the level so every summary on the way up stays in sync
+    private void setOccupiedSpots(long spot, boolean isParking) {
+        Level level = levels[ConsecutiveSpot.levelOf(spot)];
+        synchronized (level) {
+            int levelAvailable = level.getAvailableSpots();
+            int levelCompact = level.getCompactZoneSpots();
+            int levelLargeRuns = level.getRowsWithLargeRun();
+            level.setOccupiedSpots(ConsecutiveSpot.rowOf(spot), ConsecutiveSpot.startPosOf(spot),
+                    ConsecutiveSpot.lengthOf(spot), isParking);
+            availableSpots.addAndGet(level.getAvailableSpots() - levelAvailable);
+            compactZoneSpots.addAndGet(level.getCompactZoneSpots() - levelCompact);
+            rowsWithLargeRun.addAndGet(level.getRowsWithLargeRun() - levelLargeRuns);
+        }
+    }
+
+    public SpotAllocationStrategy getAllocationStrategy() {
+        return allocationStrategy;
+    }
+
+    public void setAllocationStrategy(SpotAllocationStrategy strategy) {
+        allocationStrategy = strategy;
+    }
+
+    public ParkingReservations getReservations() {
+        return reservations;
+    }
+
+    public ParkingLotMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ParkingJournal getJournal() {
+        return journal;
+    }
+
+    // start journaling; attach before the gates open, ParkingJournal.recover does this
+    public void attachJournal(ParkingJournal _journal) {
+        journal = _journal;
+        reservations.attachJournal(_journal);
+    }
+
+    // stop journaling to the given journal, after the parks and unparks journaling to it finish
+    void detachJournal(ParkingJournal _journal) {
+        long stamp = checkpointLock.writeLock();
+        try {
+            if (journal == _journal) {
+                journal = null;
+                reservations.attachJournal(null);
+            }
+        } finally {
+            checkpointLock.unlockWrite(stamp);
+        }
+    }
+
+    // write a snapshot and start a fresh journal; gates wait while the snapshot is written
+    public void checkpoint() throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("No journal attached to this parking lot");
+        }
+        long stamp = checkpointLock.writeLock();
+        try {
+            journal.checkpoint(this);
+        } finally {
+            checkpointLock.unlockWrite(stamp);
+        }
+    }
+
+    // replay a journaled park: take the spots and index the plate
+    void restorePark(String licensePlate, long spot) {
+        setOccupiedSpots(spot, true);
+        plateStripe(licensePlate).put(licensePlate, spot);
+    }
+
+    // replay a journaled unpark
+    void restoreUnpark(String licensePlate) {
+        long spot = plateStripe(licensePlate).remove(licensePlate);
+        if (spot != -1) {
+            setOccupiedSpots(spot, false);
+        }
+    }
+
+    // load a snapshot: the row bitsets are already in place, index the plates and recount
+    void restoreSnapshot(Map<String, Long> spots) {
+        for (Map.Entry<String, Long> e : spots.entrySet()) {
+            plateStripe(e.getKey()).put(e.getKey(), e.getValue());
+        }
+        rebuildSummaries();
+    }
+
+    // share of the free spots that sit outside the longest free run of their row:
+    // 0 when every row's free space is one run, close to 1 when it is scattered
+    public double getFragmentation() {
+        long free = 0;
+        long longestRuns = 0;
         for (Level l : levels) {
-            sum += l.getAvailableSpots();
+            for (Row r : l.getRows()) {
+                free += r.getAvailableSpots();
+                longestRuns += r.getLongestFreeRun();
+            }
         }
-        return sum;
+        return free == 0 ? 0 : 1 - (double) longestRuns / free;
+    }
+
+    private PlateIndex plateStripe(String licensePlate) {
+        int h = licensePlate.hashCode();
+        return plateStripes[(h ^ (h >>> 16)) & (NUM_PLATE_STRIPES - 1)];
     }
 
+    // snapshot of where every vehicle is parked, built on each call
     public Map<String, ConsecutiveSpot> getParkingMap() {
+        Map<String, ConsecutiveSpot> parkingMap = new HashMap<>();
+        for (PlateIndex stripe : plateStripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.capacity(); i++) {
+                    if (stripe.plateAt(i) != null) {
+                        parkingMap.put(stripe.plateAt(i), toConsecutiveSpot(stripe.spotAt(i)));
+                    }
+                }
+            }
+        }
         return parkingMap;
     }
 
     public void setParkingMap(String licensePlate, ConsecutiveSpot cs, boolean isParking) {
-        if (isParking) {
-            parkingMap.put(licensePlate, cs);
-        } else {
-            parkingMap.remove(licensePlate);
+        PlateIndex stripe = plateStripe(licensePlate);
+        synchronized (stripe) {
+            if (isParking) {
+                stripe.put(licensePlate, cs.toPacked());
+            } else {
+                stripe.remove(licensePlate);
+            }
         }
     }
 
-    private ConsecutiveSpot findConsecutiveSpot(Vehicle vehicle) {
+    // where the vehicle with this plate is parked, null if it is not in the lot
+    public ConsecutiveSpot getParkingSpot(String licensePlate) {
+        long spot = getPackedSpot(licensePlate);
+        return spot == -1 ? null : toConsecutiveSpot(spot);
+    }
+
+    // same as getParkingSpot without allocating, -1 if the vehicle is not in the lot
+    public long getPackedSpot(String licensePlate) {
+        PlateIndex stripe = plateStripe(licensePlate);
+        synchronized (stripe) {
+            return stripe.get(licensePlate);
+        }
+    }
+
+    public ConsecutiveSpot toConsecutiveSpot(long spot) {
+        return new ConsecutiveSpot(levels[ConsecutiveSpot.levelOf(spot)], ConsecutiveSpot.rowOf(spot),
+                ConsecutiveSpot.startPosOf(spot), ConsecutiveSpot.lengthOf(spot));
+    }
+
+    private long findConsecutiveSpot(Vehicle vehicle) {
         // 1. check the size of vehicle, and get the start parking index 
         VehicleSize vehicleSize = vehicle.getVehicleSize();
-        int length = 1;
-        if (vehicleSize == VehicleSize.Large) {
-            length = 5;
-        }
-
-        Level parkingLevel = null;
-        int[] parkingRowAndPos = {-1, -1};
-        for (int i = 0; i < levels.length; i++) {
-            Level l = levels[i];
-            parkingRowAndPos = l.findConsecutiveSpot(length, vehicleSize);
-            if (parkingRowAndPos[0] != -1 && parkingRowAndPos[1] != -1) {
-                parkingLevel = l;
-                break;
-            }
-        }
-        if (parkingRowAndPos[0] == -1 && parkingRowAndPos[1] == -1) {
-            return null;
+        if (!canFit(vehicleSize)) {
+            return -1;
         }
-        return new ConsecutiveSpot(parkingLevel, parkingRowAndPos[0], parkingRowAndPos[1], length);
+        // 2. let the allocation strategy pick the level, row and start position
+        return allocationStrategy.findConsecutiveSpot(levels, vehicleSize);
     }
 
     // Park the vehicle in a spot (or multiple spots)
-    // Return false if failed
+    // Return false if failed, or if the vehicle is already parked; both count as a rejection
+    // Safe to call from several gates at once, and allocates nothing once the plate
+    // stripes have grown to the lot's working size
     public boolean parkVehicle(Vehicle vehicle) {
-        ConsecutiveSpot spotInfo = findConsecutiveSpot(vehicle);
-        if (spotInfo == null) {
+        return parkVehicle(vehicle, (Booking) null);
+    }
+
+    // Park the vehicle into the spots booked for it through getReservations().
+    // Return false if they are not free (e.g. an earlier car overstayed), or if the booking
+    // was made for another vehicle size; the booking is kept then.
+    public boolean parkVehicle(Vehicle vehicle, Booking booking) {
+        if (booking != null && booking.getSize() != vehicle.getVehicleSize()) {
+            metrics.recordRejection(vehicle, availableSpots.get(), -1);
             return false;
         }
-        // take the spot from the level and row 
-        Level level = spotInfo.getLevel();
-        int rowNum = spotInfo.getRow();
-        Row parkedRow = level.getRows()[rowNum];
-        parkedRow.setOccupiedSpots(spotInfo.getStartPos(), spotInfo.getLength(), true);
-        // store where vehicle parked in the parkingMap;
-        setParkingMap(vehicle.licensePlate, spotInfo, true);
-        return true;
+        ParkingJournal j = journal;
+        if (j == null) {
+            return parkVehicle(vehicle, null, booking);
+        }
+        long stamp = checkpointLock.readLock();
+        try {
+            return parkVehicle(vehicle, j, booking);
+        } finally {
+            checkpointLock.unlockRead(stamp);
+        }
+    }
+
+    private boolean parkVehicle(Vehicle vehicle, ParkingJournal j, Booking booking) {
+        PlateIndex stripe = plateStripe(vehicle.licensePlate);
+        synchronized (stripe) {
+            if (stripe.get(vehicle.licensePlate) != -1) {
+                metrics.recordRejection(vehicle, availableSpots.get(), -1);
+                return false;
+            }
+        }
+        // the search runs without locks, so another gate may take the run before
+        // we claim it; in that case search again
+        long searchStart = System.nanoTime();
+        long spot;
+        if (booking != null) {
+            spot = booking.getSpot();
+            if (!claimBookedSpots(booking)) {
+                metrics.recordRejection(vehicle, availableSpots.get(), System.nanoTime() - searchStart);
+                return false;
+            }
+        } else {
+            do {
+                spot = findConsecutiveSpot(vehicle);
+                if (spot == -1) {
+                    metrics.recordRejection(vehicle, availableSpots.get(), System.nanoTime() - searchStart);
+                    return false;
+                }
+            } while (!claimSpots(spot));
+        }
+        long searchNanos = System.nanoTime() - searchStart;
+        // store where vehicle parked, unless another gate parked the same plate meanwhile;
+        // journal under the stripe lock so events for one plate are logged in order
+        synchronized (stripe) {
+            if (stripe.get(vehicle.licensePlate) == -1) {
+                stripe.put(vehicle.licensePlate, spot);
+                if (j != null) {
+                    j.logPark(vehicle.licensePlate, spot);
+                }
+                metrics.recordPark(vehicle, spot, searchNanos);
+                return true;
+            }
+        }
+        setOccupiedSpots(spot, false);
+        if (booking != null) {
+            reservations.restore(booking);
+        }
+        metrics.recordRejection(vehicle, availableSpots.get(), searchNanos);
+        return false;
     }
 
     // unPark the vehicle
     public void unParkVehicle(Vehicle vehicle) {
-        // get consecutiveSpot if the vehicle from parkingMap 
-        Map<String, ConsecutiveSpot> parkingMap = getParkingMap();
-        if (!parkingMap.containsKey(vehicle.licensePlate)) {
+        ParkingJournal j = journal;
+        if (j == null) {
+            unParkVehicle(vehicle, null);
+            return;
+        }
+        long stamp = checkpointLock.readLock();
+        try {
+            unParkVehicle(vehicle, j);
+        } finally {
+            checkpointLock.unlockRead(stamp);
+        }
+    }
+
+    private void unParkVehicle(Vehicle vehicle, ParkingJournal j) {
+        // remove the vehicle from the plate index first, so only one gate releases its spots;
+        // the unpark is journaled before the spots are freed, so it is always logged
+        // ahead of the next park that reuses them
+        PlateIndex stripe = plateStripe(vehicle.licensePlate);
+        long spot;
+        synchronized (stripe) {
+            spot = stripe.remove(vehicle.licensePlate);
+            if (spot != -1 && j != null) {
+                j.logUnpark(vehicle.licensePlate);
+            }
+        }
+        if (spot == -1) {
             return;
         }
-        ConsecutiveSpot parkInfo = parkingMap.get(vehicle.licensePlate);
-        // find the row the vehicle parked on
-        Level level = parkInfo.getLevel();
-        int rowIdx = parkInfo.getRow();
-        Row row = level.getRows()[rowIdx];
-        // unpark the vehicle 
-        int startPos = parkInfo.getStartPos();
-        int length = parkInfo.getLength();
         // Unpark the vehicle, making spots available
-        row.setOccupiedSpots(startPos, length, false);
-        // remove the vehicle from parkingMap
-        setParkingMap(vehicle.licensePlate, null, false);
+        setOccupiedSpots(spot, false);
+        metrics.recordUnpark(vehicle, spot);
+    }
+
+    // Park a burst of arrivals in one sweep over the lot.
+    // Vehicles are grouped by size, largest first so buses get the long runs before cars
+    // split them, and each group walks the levels and rows once with a cursor that only
+    // moves forward: the batch only ever takes spots, so a run that was too short for
+    // one vehicle of the group is too short for the next one as well.
+    // Returns where each vehicle parked, in input order, null for the ones turned away.
+    // A plate that is already parked, or shows up twice in the batch, is turned away
+    // like a vehicle that does not fit: null in the result and a rejection in the metrics.
+    // The single sweep is first-fit; with any other strategy the vehicles of each group
+    // go through that strategy one by one.
+    public List<ConsecutiveSpot> parkVehicles(List<Vehicle> vehicles) {
+        ParkingJournal j = journal;
+        if (j == null) {
+            return parkVehicles(vehicles, null);
+        }
+        long stamp = checkpointLock.readLock();
+        try {
+            return parkVehicles(vehicles, j);
+        } finally {
+            checkpointLock.unlockRead(stamp);
+        }
+    }
+
+    private List<ConsecutiveSpot> parkVehicles(List<Vehicle> vehicles, ParkingJournal j) {
+        ConsecutiveSpot[] result = new ConsecutiveSpot[vehicles.size()];
+        VehicleSize[] sizes = VehicleSize.values();
+        for (int s = sizes.length - 1; s >= 0; s--) {
+            VehicleSize size = sizes[s];
+            List<Integer> group = new ArrayList<>();
+            for (int i = 0; i < vehicles.size(); i++) {
+                if (vehicles.get(i).getVehicleSize() == size) {
+                    group.add(i);
+                }
+            }
+            if (!(allocationStrategy instanceof FirstFitStrategy)) {
+                for (int idx : group) {
+                    if (parkVehicle(vehicles.get(idx), j, null)) {
+                        result[idx] = getParkingSpot(vehicles.get(idx).getLicensePlate());
+                    }
+                }
+                continue;
+            }
+            int length = size.getSpotsNeeded();
+            int next = 0;
+            for (int levelIdx = 0; levelIdx < levels.length && next < group.size() && canFit(size); levelIdx++) {
+                Level level = levels[levelIdx];
+                Row[] rows = level.getRows();
+                synchronized (level) {
+                    int rowIdx = 0;
+                    int pos = 0;
+                    while (next < group.size() && rowIdx < rows.length && level.canFit(size)) {
+                        int startPos = rows[rowIdx].findConsecutiveSpot(length, size, pos);
+                        if (startPos == -1) {
+                            rowIdx++;
+                            pos = 0;
+                            continue;
+                        }
+                        int idx = group.get(next++);
+                        String licensePlate = vehicles.get(idx).getLicensePlate();
+                        PlateIndex stripe = plateStripe(licensePlate);
+                        long spot = ConsecutiveSpot.pack(levelIdx, rowIdx, startPos, length);
+                        synchronized (stripe) {
+                            if (stripe.get(licensePlate) != -1) {
+                                metrics.recordRejection(vehicles.get(idx), availableSpots.get(), -1);
+                                continue;
+                            }
+                            setOccupiedSpots(spot, true);
+                            stripe.put(licensePlate, spot);
+                            if (j != null) {
+                                j.logPark(licensePlate, spot);
+                            }
+                        }
+                        metrics.recordPark(vehicles.get(idx), spot, -1);
+                        result[idx] = toConsecutiveSpot(spot);
+                        pos = startPos + length;
+                    }
+                }
+            }
+            for (; next < group.size(); next++) {
+                metrics.recordRejection(vehicles.get(group.get(next)), availableSpots.get(), -1);
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    // unPark a batch of vehicles, unknown plates are ignored
+    public void unParkVehicles(List<Vehicle> vehicles) {
+        for (Vehicle vehicle : vehicles) {
+            unParkVehicle(vehicle);
+        }
+    }
+}
+
+/* Open-addressing map from license plate to packed spot. Keys are compared by their
+   cached hash first and only then with equals, and entries live in parallel arrays,
+   so put/get/remove allocate nothing until the table has to grow. Not thread-safe:
+   ParkingLot locks each stripe around every call. */
+class PlateIndex {
+    private int[] hashes;
+    private String[] plates;
+    private long[] spots;
+    private int size;
+
+    public PlateIndex() {
+        hashes = new int[16];
+        plates = new String[16];
+        spots = new long[16];
+    }
+
+    public int capacity() {
+        return plates.length;
+    }
+
+    public String plateAt(int i) {
+        return plates[i];
+    }
+
+    public long spotAt(int i) {
+        return spots[i];
+    }
+
+    // packed spot for the plate, -1 if it is not in the index
+    public long get(String plate) {
+        int h = plate.hashCode();
+        int mask = plates.length - 1;
+        for (int i = mix(h) & mask; plates[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == h && plates[i].equals(plate)) {
+                return spots[i];
+            }
+        }
+        return -1;
+    }
+
+    public void put(String plate, long spot) {
+        if ((size + 1) * 2 > plates.length) {
+            resize(plates.length * 2);
+        }
+        int h = plate.hashCode();
+        int mask = plates.length - 1;
+        int i = mix(h) & mask;
+        while (plates[i] != null) {
+            if (hashes[i] == h && plates[i].equals(plate)) {
+                spots[i] = spot;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        hashes[i] = h;
+        plates[i] = plate;
+        spots[i] = spot;
+        size++;
+    }
+
+    // remove the plate and return its packed spot, -1 if it was not in the index
+    public long remove(String plate) {
+        int h = plate.hashCode();
+        int mask = plates.length - 1;
+        int i = mix(h) & mask;
+        while (plates[i] != null && !(hashes[i] == h && plates[i].equals(plate))) {
+            i = (i + 1) & mask;
+        }
+        if (plates[i] == null) {
+            return -1;
+        }
+        long spot = spots[i];
+        // shift the rest of the probe chain back instead of leaving a tombstone
+        int hole = i;
+        for (int j = (i + 1) & mask; plates[j] != null; j = (j + 1) & mask) {
+            int home = mix(hashes[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                hashes[hole] = hashes[j];
+                plates[hole] = plates[j];
+                spots[hole] = spots[j];
+                hole = j;
+            }
+        }
+        plates[hole] = null;
+        size--;
+        return spot;
+    }
+
+    private void resize(int newCapacity) {
+        int[] oldHashes = hashes;
+        String[] oldPlates = plates;
+        long[] oldSpots = spots;
+        hashes = new int[newCapacity];
+        plates = new String[newCapacity];
+        spots = new long[newCapacity];
+        int mask = newCapacity - 1;
+        for (int j = 0; j < oldPlates.length; j++) {
+            if (oldPlates[j] != null) {
+                int i = mix(oldHashes[j]) & mask;
+                while (plates[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                hashes[i] = oldHashes[j];
+                plates[i] = oldPlates[j];
+                spots[i] = oldSpots[j];
+            }
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
     }
 }
 
@@ -180,20 +705,82 @@ class ConsecutiveSpot {
     public int getLength() {
         return length;
     }
+
+    public long toPacked() {
+        return pack(level.getLevelIdx(), row, startPos, length);
+    }
+
+    // A spot packed into one long so the park/unpark path does not allocate:
+    // level (15 bits) | row (16 bits) | startPos (24 bits) | length (8 bits).
+    // Never negative, so -1 can mean "no spot". ParkingLot rejects dimensions above the
+    // limits below, so every spot of a lot packs without losing bits.
+    static final int MAX_LEVELS = 1 << 15;
+    static final int MAX_ROWS = 1 << 16;
+    static final int MAX_SPOTS_PER_ROW = 1 << 24;
+
+    public static long pack(int level, int row, int startPos, int length) {
+        return ((long) level << 48) | ((long) row << 32) | ((long) startPos << 8) | length;
+    }
+
+    public static int levelOf(long spot) {
+        return (int) (spot >>> 48);
+    }
+
+    public static int rowOf(long spot) {
+        return (int) (spot >>> 32) & 0xFFFF;
+    }
+
+    public static int startPosOf(long spot) {
+        return (int) (spot >>> 8) & 0xFFFFFF;
+    }
+
+    public static int lengthOf(long spot) {
+        return (int) spot & 0xFF;
+    }
 }
 
 /* Represents a level in a parking garage */
 class Level {
+    private int levelIdx;
     private int numRows;
     private int numSpotsPerRow;
     private Row[] rows;
-    public Level(int _numRows, int _numSpotsPerRow) {
+    // summaries of the rows below, so a search can skip the whole level
+    private int availableSpots;
+    private int compactZoneSpots;
+    private int rowsWithLargeRun;
+    // how often searches looked at this level and at its rows, for ParkingLotMetrics
+    private LongAdder levelProbes;
+    private LongAdder rowProbes;
+    // bookings on all rows of this level, null until the first one is made
+    private volatile BookingIndex bookings;
+    public Level(int _levelIdx, int _numRows, int _numSpotsPerRow) {
+        levelIdx = _levelIdx;
         numRows = _numRows;
         numSpotsPerRow = _numSpotsPerRow;
         rows = new Row[numRows];
         for (int i = 0; i < numRows; i++) {
             rows[i] = new Row(numSpotsPerRow);
         }
+        levelProbes = new LongAdder();
+        rowProbes = new LongAdder();
+        rebuildSummaries();
+    }
+
+    // recount the level summaries from the rows, after rows were restored wholesale
+    public void rebuildSummaries() {
+        availableSpots = 0;
+        compactZoneSpots = 0;
+        rowsWithLargeRun = 0;
+        for (Row r : rows) {
+            availableSpots += r.getAvailableSpots();
+            compactZoneSpots += r.getCompactZoneSpots();
+            rowsWithLargeRun += r.canFit(VehicleSize.Large) ? 1 : 0;
+        }
+    }
+
+    public int getLevelIdx() {
+        return levelIdx;
     }
 
     public int getNumRows() {
@@ -209,95 +796,495 @@ class Level {
     }
 
     public int getAvailableSpots() {
-        int sum = 0;
-        for (Row r : rows) {
-            sum += r.getAvailableSpots();
+        return availableSpots;
+    }
+
+    public int getCompactZoneSpots() {
+        return compactZoneSpots;
+    }
+
+    public int getRowsWithLargeRun() {
+        return rowsWithLargeRun;
+    }
+
+    public BookingIndex getBookings() {
+        return bookings;
+    }
+
+    // callers must hold this level's monitor
+    public BookingIndex getOrCreateBookings(ParkingReservations owner) {
+        if (bookings == null) {
+            bookings = new BookingIndex(owner);
+        }
+        return bookings;
+    }
+
+    public boolean canFit(VehicleSize size) {
+        if (size == VehicleSize.Motorcycle) {
+            return availableSpots > 0;
+        } else if (size == VehicleSize.Compact) {
+            return compactZoneSpots > 0;
+        }
+        return rowsWithLargeRun > 0;
+    }
+
+    // callers must hold this level's monitor when other threads may park on it
+    public void setOccupiedSpots(int rowIdx, int startIdx, int length, boolean isParking) {
+        Row row = rows[rowIdx];
+        int rowAvailable = row.getAvailableSpots();
+        int rowCompact = row.getCompactZoneSpots();
+        boolean rowLargeRun = row.canFit(VehicleSize.Large);
+        row.setOccupiedSpots(startIdx, length, isParking);
+        availableSpots += row.getAvailableSpots() - rowAvailable;
+        compactZoneSpots += row.getCompactZoneSpots() - rowCompact;
+        if (rowLargeRun != row.canFit(VehicleSize.Large)) {
+            rowsWithLargeRun += rowLargeRun ? -1 : 1;
         }
-        return sum;
     }
 
-    public int[] findConsecutiveSpot(int length, VehicleSize size ) {
-        int[] rowAndPos = new int[]{-1,-1}; // row, startPos
+    // first fitting run on this level as a packed ConsecutiveSpot, -1 if there is none
+    public long findConsecutiveSpot(int length, VehicleSize size ) {
+        int rowsSearched = 0;
+        long spot = -1;
         for (int i = 0; i < rows.length; i++) {
             Row eachRow = rows[i];
+            if (!eachRow.canFit(size)) {
+                continue;
+            }
+            rowsSearched++;
             int startPos = eachRow.findConsecutiveSpot(length, size);
             if (startPos != -1) {
-                rowAndPos[0] = i;
-                rowAndPos[1] = startPos;
+                spot = ConsecutiveSpot.pack(levelIdx, i, startPos, length);
                 break;
             }
         }
-        return rowAndPos;
+        recordProbe(rowsSearched);
+        return spot;
+    }
+
+    // count one search of this level that looked into rowsSearched rows
+    public void recordProbe(int rowsSearched) {
+        levelProbes.increment();
+        rowProbes.add(rowsSearched);
+    }
+
+    public long getLevelProbes() {
+        return levelProbes.sum();
+    }
+
+    public long getRowProbes() {
+        return rowProbes.sum();
     }
 }
 
 class Row {
     private int numSpotsPerRow;
-    private boolean[] occupiedSpots;
+    // bit i of occupiedWords[i / 64] is set when spot i is taken, the unused
+    // bits of the last word stay set so they never show up as free
+    private long[] occupiedWords;
+    // bit w is set when occupiedWords[w] still has at least one free spot
+    private long[] freeWordIndex;
     private int availableSpots;
+    // free spots a car may use (from numSpotsPerRow / 4 on)
+    private int compactZoneSpots;
+    // whether the bus zone (from numSpotsPerRow / 4 * 3 on) still has a five-wide free run
+    private boolean hasLargeRun;
+    // bookings on this row, null until the first one is made
+    private volatile BookingIndex bookings;
     public Row(int _numSpotsPerRow) {
         numSpotsPerRow = _numSpotsPerRow;
-        occupiedSpots = new boolean[numSpotsPerRow];
-        availableSpots = numSpotsPerRow;
+        int numWords = (numSpotsPerRow + 63) >>> 6;
+        occupiedWords = new long[numWords];
+        freeWordIndex = new long[(numWords + 63) >>> 6];
+        restoreOccupiedWords(occupiedWords);
+    }
+
+    // the raw bitset, used when snapshotting the lot
+    public long[] getOccupiedWords() {
+        return occupiedWords;
+    }
+
+    // replace the whole bitset, e.g. from a snapshot, and rebuild every summary of the row
+    public void restoreOccupiedWords(long[] words) {
+        int numWords = occupiedWords.length;
+        System.arraycopy(words, 0, occupiedWords, 0, numWords);
+        if ((numSpotsPerRow & 63) != 0) {
+            occupiedWords[numWords - 1] |= -1L << numSpotsPerRow;
+        }
+        Arrays.fill(freeWordIndex, 0);
+        availableSpots = 0;
+        compactZoneSpots = 0;
+        for (int w = 0; w < numWords; w++) {
+            long free = ~occupiedWords[w];
+            if (free != 0) {
+                freeWordIndex[w >>> 6] |= 1L << w;
+            }
+            availableSpots += Long.bitCount(free);
+            compactZoneSpots += Long.bitCount(free & compactZoneMask(w));
+        }
+        hasLargeRun = findFreeRun(numSpotsPerRow / 4 * 3, VehicleSize.Large.getSpotsNeeded()) != -1;
+    }
+
+    // spots of word w that lie in the compact zone
+    private long compactZoneMask(int w) {
+        int compactStart = numSpotsPerRow / 4;
+        return w < compactStart >>> 6 ? 0 : w == compactStart >>> 6 ? -1L << compactStart : -1L;
     }
 
     public int getNumSpotsPerRow() {
         return numSpotsPerRow;
     }
 
-    public boolean[] getOccupiedSpots() {
-        return occupiedSpots;
+    public boolean isOccupied(int pos) {
+        return (occupiedWords[pos >>> 6] & (1L << pos)) != 0;
+    }
+
+    public BookingIndex getBookings() {
+        return bookings;
+    }
+
+    // callers must hold the level's monitor
+    public BookingIndex getOrCreateBookings(ParkingReservations owner) {
+        if (bookings == null) {
+            bookings = new BookingIndex(owner);
+        }
+        return bookings;
+    }
+
+    // whether a walk-in may not take these spots because they are booked within the horizon
+    public boolean isHeldForBooking(int startIdx, int length) {
+        BookingIndex b = bookings;
+        return b != null && b.walkInConflictEnd(startIdx, length) != -1;
+    }
+
+    public boolean isFree(int startIdx, int length) {
+        int endIdx = startIdx + length;
+        for (int w = startIdx >>> 6; w <= (endIdx - 1) >>> 6; w++) {
+            if ((occupiedWords[w] & wordMask(w, startIdx, endIdx)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // mask of the spots of [startIdx, endIdx) that fall into word w
+    private static long wordMask(int w, int startIdx, int endIdx) {
+        int lo = Math.max(startIdx, w << 6);
+        int hi = Math.min(endIdx, (w + 1) << 6);
+        return (-1L << lo) & (-1L >>> (63 - ((hi - 1) & 63)));
     }
 
     public int getAvailableSpots() {
         return availableSpots;
     }
 
+    public int getCompactZoneSpots() {
+        return compactZoneSpots;
+    }
+
+    public boolean canFit(VehicleSize size) {
+        if (size == VehicleSize.Motorcycle) {
+            return availableSpots > 0;
+        } else if (size == VehicleSize.Compact) {
+            return compactZoneSpots > 0;
+        }
+        return hasLargeRun;
+    }
+
+    // callers that keep level summaries should go through Level.setOccupiedSpots
     public void setOccupiedSpots(int startIdx, int length, boolean isParking) {
-        if (isParking) {
-            for (int i = startIdx; i < startIdx + length; i++) {
-                occupiedSpots[i] = true;
-                availableSpots -= 1;
+        int endIdx = startIdx + length;
+        for (int w = startIdx >>> 6; w <= (endIdx - 1) >>> 6; w++) {
+            long mask = wordMask(w, startIdx, endIdx);
+            long changed = (isParking ? ~occupiedWords[w] : occupiedWords[w]) & mask;
+            int delta = isParking ? -1 : 1;
+            availableSpots += delta * Long.bitCount(changed);
+            compactZoneSpots += delta * Long.bitCount(changed & compactZoneMask(w));
+            occupiedWords[w] ^= changed;
+            if (occupiedWords[w] == -1L) {
+                freeWordIndex[w >>> 6] &= ~(1L << w);
+            } else {
+                freeWordIndex[w >>> 6] |= 1L << w;
             }
-        } else {
-            for (int i = startIdx; i < startIdx + length; i++) {
-                occupiedSpots[i] = false;
-                availableSpots += 1;
+        }
+        if (endIdx > numSpotsPerRow / 4 * 3) {
+            hasLargeRun = findFreeRun(numSpotsPerRow / 4 * 3, VehicleSize.Large.getSpotsNeeded()) != -1;
+        }
+    }
+
+    // first free spot at or after pos, -1 if there is none
+    private int nextFreeSpot(int pos) {
+        if (pos >= numSpotsPerRow) {
+            return -1;
+        }
+        int w = pos >>> 6;
+        long free = ~occupiedWords[w] & (-1L << pos);
+        if (free != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(free);
+        }
+        // jump straight to the next word that is not full
+        int i = (w + 1) >>> 6;
+        if (i >= freeWordIndex.length) {
+            return -1;
+        }
+        long words = freeWordIndex[i] & (-1L << (w + 1));
+        while (words == 0) {
+            if (++i == freeWordIndex.length) {
+                return -1;
+            }
+            words = freeWordIndex[i];
+        }
+        w = (i << 6) + Long.numberOfTrailingZeros(words);
+        return (w << 6) + Long.numberOfTrailingZeros(~occupiedWords[w]);
+    }
+
+    // first occupied spot at or after pos, numSpotsPerRow if there is none
+    private int nextOccupiedSpot(int pos) {
+        int w = pos >>> 6;
+        if (w >= occupiedWords.length) {
+            return numSpotsPerRow;
+        }
+        long taken = occupiedWords[w] & (-1L << pos);
+        while (taken == 0) {
+            if (++w == occupiedWords.length) {
+                return numSpotsPerRow;
+            }
+            taken = occupiedWords[w];
+        }
+        return Math.min(numSpotsPerRow, (w << 6) + Long.numberOfTrailingZeros(taken));
+    }
+
+    // start of the first run of at least length free spots at or after pos, -1 if there is none
+    private int findFreeRun(int pos, int length) {
+        int start = nextFreeSpot(pos);
+        while (start != -1) {
+            int end = nextOccupiedSpot(start);
+            if (end - start >= length) {
+                return start;
             }
+            // step past start even if a concurrent park made it look taken
+            start = nextFreeSpot(Math.max(end, start + 1));
         }
+        return -1;
     }
 
     public int findConsecutiveSpot(int length, VehicleSize size) {
-        if (availableSpots < length) {
+        return findConsecutiveSpot(length, size, 0);
+    }
+
+    // same as above, but only considers runs starting at fromPos or later
+    public int findConsecutiveSpot(int length, VehicleSize size, int fromPos) {
+        if (availableSpots < length || !canFit(size)) {
+            return -1;
+        }
+        int start = findFreeRun(Math.max(fromPos, zoneStart(size)), length);
+        // walk-ins must not take spots booked to start within the reservation horizon,
+        // skip past each booking in the way
+        BookingIndex b = bookings;
+        while (start != -1 && b != null) {
+            int blockedUntil = b.walkInConflictEnd(start, length);
+            if (blockedUntil == -1) {
+                break;
+            }
+            start = findFreeRun(blockedUntil, length);
+        }
+        return start;
+    }
+
+    // Start of a run of length spots with no booking overlapping [from, to), -1 if there
+    // is none. Current occupancy only counts when avoidOccupied is set.
+    public int findBookableRun(int length, VehicleSize size, long from, long to, boolean avoidOccupied) {
+        BookingIndex b = bookings;
+        int pos = zoneStart(size);
+        while (pos + length <= numSpotsPerRow) {
+            int start = avoidOccupied ? findFreeRun(pos, length) : pos;
+            if (start == -1) {
+                return -1;
+            }
+            int blockedUntil = b == null ? -1 : b.conflictEnd(start, length, from, to);
+            if (blockedUntil == -1) {
+                return start;
+            }
+            pos = blockedUntil;
+        }
+        return -1;
+    }
+
+    // start of the smallest free run of at least length spots, -1 if there is none
+    public int findBestFitRun(int length, VehicleSize size) {
+        if (availableSpots < length || !canFit(size)) {
+            return -1;
+        }
+        if (bookings != null) {
+            // rows with bookings fall back to first fit, which knows how to step around them
+            return findConsecutiveSpot(length, size);
+        }
+        int best = -1;
+        int bestLength = Integer.MAX_VALUE;
+        int start = nextFreeSpot(zoneStart(size));
+        while (start != -1) {
+            int end = nextOccupiedSpot(start);
+            if (end - start >= length && end - start < bestLength) {
+                best = start;
+                bestLength = end - start;
+                if (bestLength == length) {
+                    break;
+                }
+            }
+            start = nextFreeSpot(Math.max(end, start + 1));
+        }
+        return best;
+    }
+
+    // number of free spots from startPos up to the next occupied one
+    public int freeRunLength(int startPos) {
+        return nextOccupiedSpot(startPos) - startPos;
+    }
+
+    public int getLongestFreeRun() {
+        int longest = 0;
+        int start = nextFreeSpot(0);
+        while (start != -1) {
+            int end = nextOccupiedSpot(start);
+            longest = Math.max(longest, end - start);
+            start = nextFreeSpot(Math.max(end, start + 1));
+        }
+        return longest;
+    }
+
+    // first spot a vehicle of the given size may take
+    private int zoneStart(VehicleSize size) {
+        if (size == VehicleSize.Compact) { // A car park in single compact spot or large spot
+            return numSpotsPerRow / 4;
+        } else if (size == VehicleSize.Large) { // A bus can park in five large spots that are consecutive 
+            return numSpotsPerRow / 4 * 3;
+        }
+        return 0; // motorcycle can park in any spot
+    }
+}
+
+/* Decides where in the lot a vehicle goes. Implementations only search; the lot claims
+   the returned spots and searches again if another gate took them first. */
+interface SpotAllocationStrategy {
+    // return the spot packed with ConsecutiveSpot.pack, -1 when no level has room
+    long findConsecutiveSpot(Level[] levels, VehicleSize size);
+}
+
+/* Lowest level, lowest row, lowest position first */
+class FirstFitStrategy implements SpotAllocationStrategy {
+    public long findConsecutiveSpot(Level[] levels, VehicleSize size) {
+        for (Level l : levels) {
+            long spot = findInLevel(l, size);
+            if (spot != -1) {
+                return spot;
+            }
+        }
+        return -1;
+    }
+
+    // first fit inside a single level, -1 if the level has no room
+    static long findInLevel(Level l, VehicleSize size) {
+        if (!l.canFit(size)) {
             return -1;
         }
-        if (size == VehicleSize.Motorcycle) { // motorcycle can park in any spot
-            for (int i = 0; i < numSpotsPerRow; i++) {
-                if (!occupiedSpots[i]) {
-                    return i;
+        return l.findConsecutiveSpot(size.getSpotsNeeded(), size);
+    }
+}
+
+/* Smallest free run that still fits anywhere in the lot, so small vehicles fill gaps
+   and the long runs stay open for buses */
+class BestFitStrategy implements SpotAllocationStrategy {
+    public long findConsecutiveSpot(Level[] levels, VehicleSize size) {
+        int length = size.getSpotsNeeded();
+        long best = -1;
+        int bestLength = Integer.MAX_VALUE;
+        for (Level l : levels) {
+            if (!l.canFit(size)) {
+                continue;
+            }
+            Row[] rows = l.getRows();
+            int rowsSearched = 0;
+            for (int i = 0; i < rows.length && bestLength != length; i++) {
+                if (!rows[i].canFit(size)) {
+                    continue;
+                }
+                rowsSearched++;
+                int startPos = rows[i].findBestFitRun(length, size);
+                if (startPos == -1) {
+                    continue;
                 }
+                int runLength = rows[i].freeRunLength(startPos);
+                if (runLength < bestLength) {
+                    best = ConsecutiveSpot.pack(l.getLevelIdx(), i, startPos, length);
+                    bestLength = runLength;
+                }
+            }
+            l.recordProbe(rowsSearched);
+            if (bestLength == length) {
+                return best;
             }
-        } else if (size == VehicleSize.Compact) { // A car park in single compact spot or large spot
-            for (int i = numSpotsPerRow / 4; i < numSpotsPerRow; i++) {
-                if (!occupiedSpots[i]) {
-                    return i;
+        }
+        return best;
+    }
+}
+
+/* First fit, but levels are tried in order of distance from the entrance level */
+class NearestToEntranceStrategy implements SpotAllocationStrategy {
+    private int entranceLevel;
+
+    public NearestToEntranceStrategy(int _entranceLevel) {
+        entranceLevel = _entranceLevel;
+    }
+
+    public long findConsecutiveSpot(Level[] levels, VehicleSize size) {
+        for (int d = 0; d < levels.length; d++) {
+            int below = entranceLevel - d;
+            int above = entranceLevel + d;
+            if (below >= 0 && below < levels.length) {
+                long spot = FirstFitStrategy.findInLevel(levels[below], size);
+                if (spot != -1) {
+                    return spot;
                 }
             }
-        } else if (size == VehicleSize.Large){ // A bus can park in five large spots that are consecutive 
-            for (int i = numSpotsPerRow / 4 * 3; i <= numSpotsPerRow - length; i++) {
-                boolean canPark = true;
-                for (int j = 0; j < length; j++) {
-                    if (occupiedSpots[i + j]) {
-                        canPark = false;
-                        i += j;
-                        break;
-                    }
+            if (d > 0 && above >= 0 && above < levels.length) {
+                long spot = FirstFitStrategy.findInLevel(levels[above], size);
+                if (spot != -1) {
+                    return spot;
                 }
-                if (canPark) {
-                    return i;
+            }
+        }
+        return -1;
+    }
+}
+
+/* First fit inside the emptiest level that can take the vehicle */
+class LevelBalancingStrategy implements SpotAllocationStrategy {
+    public long findConsecutiveSpot(Level[] levels, VehicleSize size) {
+        // visit levels from most to least available spots (ties by index) without
+        // sorting: each round takes the best level ranked after the previous one
+        int prevAvailable = Integer.MAX_VALUE;
+        int prevIdx = -1;
+        for (int attempt = 0; attempt < levels.length; attempt++) {
+            int emptiest = -1;
+            int emptiestAvailable = -1;
+            for (int i = 0; i < levels.length; i++) {
+                int available = levels[i].getAvailableSpots();
+                boolean rankedAfterPrev = available < prevAvailable || (available == prevAvailable && i > prevIdx);
+                if (rankedAfterPrev && available > emptiestAvailable) {
+                    emptiest = i;
+                    emptiestAvailable = available;
                 }
             }
+            if (emptiest == -1) {
+                return -1;
+            }
+            long spot = FirstFitStrategy.findInLevel(levels[emptiest], size);
+            if (spot != -1) {
+                return spot;
+            }
+            prevAvailable = emptiestAvailable;
+            prevIdx = emptiest;
         }
         return -1;
     }
-}
\ No newline at end of file
+}
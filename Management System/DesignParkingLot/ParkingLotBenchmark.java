@@ -0,0 +1,124 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/* Single-threaded benchmarks for ParkingLot admission and release; from this directory:
+     javac *.java && java ParkingLotBenchmark [measuredOps]
+   Every lot shape is brought to each occupancy (empty, half, fragmented, near full) and then
+   measured under two workloads: admission (park a mixed vehicle, then unpark it again so
+   the occupancy stays put) and churn (unpark a random parked vehicle, park a new one).
+   For each case it prints throughput, latency percentiles and bytes allocated per op. */
+class ParkingLotBenchmark {
+    // levels x rows x spots per row
+    private static final int[][] SHAPES = {{1, 4, 100}, {4, 20, 200}, {10, 50, 500}};
+    private static final String[] OCCUPANCIES = {"empty", "half", "fragmented", "near-full"};
+    private static final int WARMUP_OPS = 200_000;
+
+    public static void main(String[] args) {
+        int measuredOps = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        System.out.printf("%-12s %-11s %-9s %12s %8s %8s %8s %10s%n",
+                "lot", "occupancy", "workload", "ops/s", "p50 ns", "p99 ns", "p99.9 ns", "B/op");
+        for (int[] shape : SHAPES) {
+            for (String occupancy : OCCUPANCIES) {
+                for (String workload : new String[]{"admission", "churn"}) {
+                    run(shape, occupancy, workload, measuredOps);
+                }
+            }
+        }
+    }
+
+    private static void run(int[] shape, String occupancy, String workload, int measuredOps) {
+        ParkingLot lot = new ParkingLot(shape[0], shape[1], shape[2]);
+        Random random = new Random(42);
+        List<Vehicle> parked = fill(lot, occupancy, random);
+        // a fixed pool of fresh vehicles, so the measured loop does not create any
+        Vehicle[] arrivals = new Vehicle[4096];
+        for (int i = 0; i < arrivals.length; i++) {
+            arrivals[i] = ParkingWorkload.vehicle(ParkingWorkload.mixedSize(random), "A" + i);
+        }
+        int[] picks = new int[1 << 16];
+        for (int i = 0; i < picks.length; i++) {
+            picks[i] = random.nextInt(Integer.MAX_VALUE);
+        }
+
+        Vehicle[] parkedArr = parked.toArray(new Vehicle[0]);
+        boolean churn = workload.equals("churn");
+        for (int i = 0; i < WARMUP_OPS; i++) {
+            step(lot, churn, parkedArr, arrivals, picks, i);
+        }
+        long[] latencies = new long[measuredOps];
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < measuredOps; i++) {
+            long t0 = System.nanoTime();
+            step(lot, churn, parkedArr, arrivals, picks, i);
+            latencies[i] = System.nanoTime() - t0;
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+
+        Arrays.sort(latencies);
+        System.out.printf("%-12s %-11s %-9s %12.0f %8d %8d %8d %10.2f%n",
+                shape[0] + "x" + shape[1] + "x" + shape[2], occupancy, workload,
+                measuredOps * 1e9 / elapsed,
+                latencies[measuredOps / 2], latencies[(int) (measuredOps * 0.99)],
+                latencies[(int) (measuredOps * 0.999)], (double) bytes / measuredOps);
+    }
+
+    // One measured operation. Admission parks and unparks the same arrival, so the
+    // occupancy set up by fill stays the same; churn swaps a parked vehicle for an
+    // arrival, so the lot slowly reshuffles at a constant fill level.
+    private static void step(ParkingLot lot, boolean churn, Vehicle[] parked, Vehicle[] arrivals,
+                             int[] picks, int i) {
+        Vehicle arrival = arrivals[i & (arrivals.length - 1)];
+        if (!churn || parked.length == 0) {
+            if (lot.parkVehicle(arrival)) {
+                lot.unParkVehicle(arrival);
+            }
+            return;
+        }
+        int slot = picks[i & (picks.length - 1)] % parked.length;
+        lot.unParkVehicle(parked[slot]);
+        // take the leaving vehicle's place in the pool whether or not the arrival fits
+        if (lot.parkVehicle(arrival)) {
+            arrivals[i & (arrivals.length - 1)] = parked[slot];
+            parked[slot] = arrival;
+        } else {
+            lot.parkVehicle(parked[slot]);
+        }
+    }
+
+    private static List<Vehicle> fill(ParkingLot lot, String occupancy, Random random) {
+        List<Vehicle> parked = new ArrayList<>();
+        int total = lot.getNumOfLevels() * lot.getNumOfRows() * lot.getNumSpotsPerRow();
+        double target = occupancy.equals("half") ? 0.5 : occupancy.equals("near-full") ? 0.95
+                : occupancy.equals("fragmented") ? 0.9 : 0;
+        int n = 0;
+        while (total - lot.getAvailableSpots() < total * target) {
+            Vehicle v = ParkingWorkload.vehicle(ParkingWorkload.mixedSize(random), "F" + n++);
+            if (lot.parkVehicle(v)) {
+                parked.add(v);
+            } else if (!lot.canFit(VehicleSize.Motorcycle)) {
+                break;
+            }
+        }
+        if (occupancy.equals("fragmented")) {
+            // free every other vehicle: plenty of capacity, but in short scattered runs
+            List<Vehicle> kept = new ArrayList<>();
+            for (int i = 0; i < parked.size(); i++) {
+                if (i % 2 == 0) {
+                    lot.unParkVehicle(parked.get(i));
+                } else {
+                    kept.add(parked.get(i));
+                }
+            }
+            parked = kept;
+        }
+        return parked;
+    }
+}
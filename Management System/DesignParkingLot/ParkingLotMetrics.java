@@ -0,0 +1,285 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* Counters and event stream for a ParkingLot, see ParkingLot.getMetrics().
+   Everything on the park/unpark path is a LongAdder increment, plus an offer into a
+   lock-free bounded ring while someone is subscribed, so it can stay on in production. */
+class ParkingLotMetrics {
+    // bucket b counts searches that took [2^b, 2^(b+1)) nanoseconds
+    private static final int LATENCY_BUCKETS = 40;
+
+    private Level[] levels;
+    private LongAdder parks;
+    private LongAdder unparks;
+    private LongAdder[] rejections;
+    // rejections while the lot still had at least as many free spots as the vehicle needs
+    private LongAdder[] rejectionsWithCapacity;
+    private LongAdder[] searchLatency;
+    private ParkingEventStream events;
+
+    public ParkingLotMetrics(Level[] _levels) {
+        levels = _levels;
+        parks = new LongAdder();
+        unparks = new LongAdder();
+        int numSizes = VehicleSize.values().length;
+        rejections = new LongAdder[numSizes];
+        rejectionsWithCapacity = new LongAdder[numSizes];
+        for (int i = 0; i < numSizes; i++) {
+            rejections[i] = new LongAdder();
+            rejectionsWithCapacity[i] = new LongAdder();
+        }
+        searchLatency = new LongAdder[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            searchLatency[i] = new LongAdder();
+        }
+        events = new ParkingEventStream(1 << 14);
+    }
+
+    // searchNanos < 0 means the park was not timed (batch admission)
+    void recordPark(Vehicle vehicle, long spot, long searchNanos) {
+        parks.increment();
+        recordLatency(searchNanos);
+        if (events.hasListeners()) {
+            events.publish(new ParkingEvent(ParkingEventType.Park, vehicle.getLicensePlate(),
+                    vehicle.getVehicleSize(), spot));
+        }
+    }
+
+    void recordUnpark(Vehicle vehicle, long spot) {
+        unparks.increment();
+        if (events.hasListeners()) {
+            events.publish(new ParkingEvent(ParkingEventType.Unpark, vehicle.getLicensePlate(),
+                    vehicle.getVehicleSize(), spot));
+        }
+    }
+
+    void recordRejection(Vehicle vehicle, int availableSpots, long searchNanos) {
+        VehicleSize size = vehicle.getVehicleSize();
+        rejections[size.ordinal()].increment();
+        if (availableSpots >= size.getSpotsNeeded()) {
+            rejectionsWithCapacity[size.ordinal()].increment();
+        }
+        recordLatency(searchNanos);
+        if (events.hasListeners()) {
+            events.publish(new ParkingEvent(ParkingEventType.Reject, vehicle.getLicensePlate(), size, -1));
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        if (nanos >= 0) {
+            int bucket = 63 - Long.numberOfLeadingZeros(nanos | 1);
+            searchLatency[Math.min(bucket, LATENCY_BUCKETS - 1)].increment();
+        }
+    }
+
+    public long getParks() {
+        return parks.sum();
+    }
+
+    public long getUnparks() {
+        return unparks.sum();
+    }
+
+    public long getRejections(VehicleSize size) {
+        return rejections[size.ordinal()].sum();
+    }
+
+    // vehicles turned away although enough spots were free, just not consecutive or in their zone
+    public long getRejectionsWithCapacity(VehicleSize size) {
+        return rejectionsWithCapacity[size.ordinal()].sum();
+    }
+
+    // upper bound in nanoseconds of the search latency below which the given fraction of searches fall
+    public long getSearchLatencyPercentile(double fraction) {
+        long[] counts = new long[LATENCY_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            counts[i] = searchLatency[i].sum();
+            total += counts[i];
+        }
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen > 0 && seen >= fraction * total) {
+                return 1L << (i + 1);
+            }
+        }
+        return 0;
+    }
+
+    public long getLevelsProbed() {
+        long sum = 0;
+        for (Level l : levels) {
+            sum += l.getLevelProbes();
+        }
+        return sum;
+    }
+
+    public long getRowsProbed() {
+        long sum = 0;
+        for (Level l : levels) {
+            sum += l.getRowProbes();
+        }
+        return sum;
+    }
+
+    // share of the spots of the level that are taken
+    public double getLevelUtilization(int levelIdx) {
+        Level l = levels[levelIdx];
+        int capacity = l.getNumRows() * l.getNumSpotsPerRow();
+        return capacity == 0 ? 0 : 1 - (double) l.getAvailableSpots() / capacity;
+    }
+
+    // events dropped because subscribers fell more than the buffer size behind
+    public long getDroppedEvents() {
+        return events.getDropped();
+    }
+
+    public void subscribe(ParkingEventListener listener) {
+        events.subscribe(listener);
+    }
+
+    public void unsubscribe(ParkingEventListener listener) {
+        events.unsubscribe(listener);
+    }
+}
+
+enum ParkingEventType {
+    Park,
+    Unpark,
+    Reject,
+}
+
+class ParkingEvent {
+    private ParkingEventType type;
+    private String licensePlate;
+    private VehicleSize size;
+    private long spot;
+    private long timestamp;
+
+    public ParkingEvent(ParkingEventType _type, String _licensePlate, VehicleSize _size, long _spot) {
+        type = _type;
+        licensePlate = _licensePlate;
+        size = _size;
+        spot = _spot;
+        timestamp = System.currentTimeMillis();
+    }
+
+    public ParkingEventType getType() {
+        return type;
+    }
+
+    public String getLicensePlate() {
+        return licensePlate;
+    }
+
+    public VehicleSize getVehicleSize() {
+        return size;
+    }
+
+    // packed ConsecutiveSpot, -1 for rejections; ParkingLot.toConsecutiveSpot unpacks it
+    public long getSpot() {
+        return spot;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
+
+interface ParkingEventListener {
+    // called on the stream's dispatcher thread, never on a gate's thread
+    void onEvent(ParkingEvent event);
+}
+
+/* Bounded multi-producer ring drained by one dispatcher thread. Producers claim a slot
+   with a CAS on tail and drop the event (counting it) when the ring is full, so a slow
+   subscriber can never block a gate. An idle dispatcher parks until a producer wakes it,
+   so a lot without traffic or without subscribers costs no CPU. */
+class ParkingEventStream {
+    private AtomicReferenceArray<ParkingEvent> ring;
+    private int mask;
+    private AtomicLong tail;
+    private volatile long head;
+    private LongAdder dropped;
+    private CopyOnWriteArrayList<ParkingEventListener> listeners;
+    private volatile Thread dispatcher;
+    // set by the dispatcher before it parks on an empty ring
+    private volatile boolean dispatcherWaiting;
+
+    public ParkingEventStream(int capacity) {
+        ring = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+        tail = new AtomicLong();
+        dropped = new LongAdder();
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public void publish(ParkingEvent event) {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        ring.set((int) t & mask, event);
+        // read after the write above; the dispatcher sets the flag before its last look
+        // at the ring, so either it sees the event or we see the flag
+        if (dispatcherWaiting) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    public synchronized void subscribe(ParkingEventListener listener) {
+        listeners.add(listener);
+        if (dispatcher == null) {
+            dispatcher = new Thread(this::dispatchLoop, "parking-event-dispatcher");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+    }
+
+    public void unsubscribe(ParkingEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            int slot = (int) head & mask;
+            ParkingEvent event = ring.get(slot);
+            if (event == null) {
+                // empty, or the producer that claimed this slot has not written it yet;
+                // that producer unparks us once it has
+                dispatcherWaiting = true;
+                if (ring.get(slot) == null) {
+                    LockSupport.park(this);
+                }
+                dispatcherWaiting = false;
+                continue;
+            }
+            // clear the slot before moving head, so a producer can only reuse it once it is empty
+            ring.set(slot, null);
+            head = head + 1;
+            for (ParkingEventListener listener : listeners) {
+                try {
+                    listener.onEvent(event);
+                } catch (RuntimeException e) {
+                    // a failing subscriber must not stop delivery to the others
+                }
+            }
+        }
+    }
+}
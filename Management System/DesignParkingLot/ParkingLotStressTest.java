@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Races many gates against one small lot, then audits it; from this directory:
+     javac *.java && java ParkingLotStressTest [gates] [opsPerGate]
+   Each gate parks and unparks vehicles of its own, now and then as a batch, and fights
+   the other gates over a shared set of plates. Once the gates have stopped, no two
+   vehicles may overlap, each run must be as long as its vehicle needs, and the plate
+   index, row bitsets and row, level and lot counters must all agree. A gate that throws
+   or a failed audit ends the run with an exception. */
+class ParkingLotStressTest {
+    private static final int LEVELS = 2;
+    private static final int ROWS = 4;
+    private static final int SPOTS_PER_ROW = 100;
+    private static final int VEHICLES_PER_GATE = 60;
+    private static final int SHARED_VEHICLES = 64;
+
+    public static void main(String[] args) throws Exception {
+        int gates = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int opsPerGate = args.length > 1 ? Integer.parseInt(args[1]) : 500_000;
+
+        ParkingLot lot = new ParkingLot(LEVELS, ROWS, SPOTS_PER_ROW);
+        Random setup = new Random(42);
+        Map<String, VehicleSize> sizes = new HashMap<>();
+        Vehicle[] shared = new Vehicle[SHARED_VEHICLES];
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = ParkingWorkload.vehicle(ParkingWorkload.mixedSize(setup), "S" + i);
+            sizes.put(shared[i].getLicensePlate(), shared[i].getVehicleSize());
+        }
+        Vehicle[][] owned = new Vehicle[gates][VEHICLES_PER_GATE];
+        for (int g = 0; g < gates; g++) {
+            for (int i = 0; i < VEHICLES_PER_GATE; i++) {
+                owned[g][i] = ParkingWorkload.vehicle(ParkingWorkload.mixedSize(setup), "G" + g + "-" + i);
+                sizes.put(owned[g][i].getLicensePlate(), owned[g][i].getVehicleSize());
+            }
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(gates);
+        List<Future<?>> gateRuns = new ArrayList<>();
+        for (int g = 0; g < gates; g++) {
+            int gate = g;
+            gateRuns.add(pool.submit(() -> {
+                Random random = new Random(gate);
+                Vehicle[] own = owned[gate];
+                start.await();
+                for (int i = 0; i < opsPerGate; i++) {
+                    int op = random.nextInt(100);
+                    Vehicle v = op < 20 ? shared[random.nextInt(shared.length)] : own[random.nextInt(own.length)];
+                    if (op % 10 == 9) {
+                        List<Vehicle> batch = new ArrayList<>();
+                        for (int b = 0; b < 8; b++) {
+                            batch.add(own[random.nextInt(own.length)]);
+                        }
+                        lot.parkVehicles(batch);
+                    } else if (op % 2 == 0) {
+                        lot.parkVehicle(v);
+                    } else {
+                        lot.unParkVehicle(v);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        try {
+            // get() rethrows whatever a gate threw
+            for (Future<?> run : gateRuns) {
+                run.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - began;
+
+        List<String> failures = check(lot, sizes);
+        System.out.printf("%d gates, %d ops, %.0f ops/s, %d vehicles parked, %d spots free%n",
+                gates, (long) gates * opsPerGate, gates * (double) opsPerGate * 1e9 / elapsed,
+                lot.getParkingMap().size(), lot.getAvailableSpots());
+        for (String failure : failures) {
+            System.out.println("FAIL: " + failure);
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException(failures.size() + " audit failures, the first: " + failures.get(0));
+        }
+        System.out.println("OK");
+    }
+
+    // compare the plate index with the bitsets and the summaries, with all gates stopped
+    private static List<String> check(ParkingLot lot, Map<String, VehicleSize> sizes) {
+        List<String> failures = new ArrayList<>();
+        String[][][] owner = new String[LEVELS][ROWS][SPOTS_PER_ROW];
+        int taken = 0;
+        for (Map.Entry<String, ConsecutiveSpot> e : lot.getParkingMap().entrySet()) {
+            ConsecutiveSpot cs = e.getValue();
+            if (cs.getLength() != sizes.get(e.getKey()).getSpotsNeeded()) {
+                failures.add(e.getKey() + " takes " + cs.getLength() + " spots as a " + sizes.get(e.getKey()));
+            }
+            for (int pos = cs.getStartPos(); pos < cs.getStartPos() + cs.getLength(); pos++) {
+                String other = owner[cs.getLevel().getLevelIdx()][cs.getRow()][pos];
+                if (other != null) {
+                    failures.add(e.getKey() + " overlaps " + other + " at " + describe(cs, pos));
+                }
+                owner[cs.getLevel().getLevelIdx()][cs.getRow()][pos] = e.getKey();
+            }
+            taken += cs.getLength();
+        }
+
+        int lotAvailable = 0;
+        for (Level level : lot.getLevels()) {
+            int levelAvailable = 0;
+            for (int r = 0; r < ROWS; r++) {
+                Row row = level.getRows()[r];
+                int rowAvailable = 0;
+                for (int pos = 0; pos < SPOTS_PER_ROW; pos++) {
+                    boolean indexed = owner[level.getLevelIdx()][r][pos] != null;
+                    if (row.isOccupied(pos) != indexed) {
+                        failures.add("spot " + level.getLevelIdx() + "/" + r + "/" + pos + " is "
+                                + (indexed ? "free in the bitset but parked in the index"
+                                           : "taken in the bitset but not in the index"));
+                    }
+                    rowAvailable += row.isOccupied(pos) ? 0 : 1;
+                }
+                if (row.getAvailableSpots() != rowAvailable) {
+                    failures.add("row " + level.getLevelIdx() + "/" + r + " counts " + row.getAvailableSpots()
+                            + " free spots, has " + rowAvailable);
+                }
+                levelAvailable += rowAvailable;
+            }
+            if (level.getAvailableSpots() != levelAvailable) {
+                failures.add("level " + level.getLevelIdx() + " counts " + level.getAvailableSpots()
+                        + " free spots, has " + levelAvailable);
+            }
+            lotAvailable += levelAvailable;
+        }
+        if (lot.getAvailableSpots() != lotAvailable) {
+            failures.add("lot counts " + lot.getAvailableSpots() + " free spots, has " + lotAvailable);
+        }
+        if (taken + lotAvailable != LEVELS * ROWS * SPOTS_PER_ROW) {
+            failures.add(taken + " spots parked and " + lotAvailable + " free do not add up to the lot");
+        }
+        return failures;
+    }
+
+    private static String describe(ConsecutiveSpot cs, int pos) {
+        return cs.getLevel().getLevelIdx() + "/" + cs.getRow() + "/" + pos;
+    }
+}
@@ -0,0 +1,460 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/* Pre-booked spot runs (events, monthly permits) for a ParkingLot, see
+   ParkingLot.getReservations(). A booking holds a run of spots on one row for a time
+   window [from, to) in epoch milliseconds. Walk-ins never get spots whose booking
+   overlaps [now, now + horizon); the booked vehicle redeems its booking with
+   ParkingLot.parkVehicle(vehicle, booking). While the lot has a ParkingJournal, every
+   booking made, cancelled or redeemed is journaled and checkpoints include the live
+   bookings, so they survive a restart. */
+class ParkingReservations {
+    public static final long DEFAULT_HORIZON_MILLIS = 30 * 60 * 1000;
+
+    private Level[] levels;
+    private volatile long horizonMillis;
+    private volatile LongSupplier clock;
+    private AtomicLong nextBookingId;
+    // set by ParkingLot.attachJournal; bookings are journaled under the level's monitor
+    private volatile ParkingJournal journal;
+
+    public ParkingReservations(Level[] _levels, long _horizonMillis) {
+        checkHorizon(_horizonMillis);
+        levels = _levels;
+        horizonMillis = _horizonMillis;
+        clock = System::currentTimeMillis;
+        nextBookingId = new AtomicLong();
+    }
+
+    public long getHorizonMillis() {
+        return horizonMillis;
+    }
+
+    public void setHorizonMillis(long _horizonMillis) {
+        checkHorizon(_horizonMillis);
+        horizonMillis = _horizonMillis;
+    }
+
+    private static void checkHorizon(long horizonMillis) {
+        if (horizonMillis < 0) {
+            throw new IllegalArgumentException("negative reservation horizon " + horizonMillis);
+        }
+    }
+
+    // an empty or inverted window would book nothing or break the interval queries
+    private static void checkWindow(long from, long to) {
+        if (from >= to) {
+            throw new IllegalArgumentException("booking window [" + from + ", " + to + ") is empty");
+        }
+    }
+
+    // time source for the horizon, replaceable for simulations
+    public void setClock(LongSupplier _clock) {
+        clock = _clock;
+    }
+
+    public long now() {
+        return clock.getAsLong();
+    }
+
+    void attachJournal(ParkingJournal _journal) {
+        journal = _journal;
+    }
+
+    // Book a run for a vehicle of the given size on level minLevel or above, free of other
+    // bookings for [from, to). A window starting within the horizon also avoids the spots
+    // occupied right now. Returns null if there is no such run; throws
+    // IllegalArgumentException unless from < to.
+    public Booking book(VehicleSize size, long from, long to, int minLevel) {
+        checkWindow(from, to);
+        boolean avoidOccupied = from < now() + horizonMillis;
+        for (int i = Math.max(minLevel, 0); i < levels.length; i++) {
+            Level level = levels[i];
+            synchronized (level) {
+                long spot = findInLevel(i, size, from, to, avoidOccupied);
+                if (spot != -1) {
+                    Booking booking = new Booking(nextBookingId.incrementAndGet(), spot, size, from, to);
+                    index(level, booking);
+                    ParkingJournal j = journal;
+                    if (j != null) {
+                        j.logBook(booking);
+                    }
+                    return booking;
+                }
+            }
+        }
+        return null;
+    }
+
+    // same search as book without taking the run, packed ConsecutiveSpot or -1
+    public long findBookableRun(VehicleSize size, long from, long to, int minLevel) {
+        checkWindow(from, to);
+        boolean avoidOccupied = from < now() + horizonMillis;
+        for (int i = Math.max(minLevel, 0); i < levels.length; i++) {
+            long spot = findInLevel(i, size, from, to, avoidOccupied);
+            if (spot != -1) {
+                return spot;
+            }
+        }
+        return -1;
+    }
+
+    // First bookable run on the level as a packed ConsecutiveSpot, -1 if there is none.
+    // When the spots occupied now count, the level and row summaries skip full levels and
+    // rows in O(1) each. For a later window only bookings count: one query of the level's
+    // index finds the rows with a booking overlapping the window, the first row without
+    // one takes the run at the start of its zone, and only the rows before it are searched.
+    private long findInLevel(int levelIdx, VehicleSize size, long from, long to, boolean avoidOccupied) {
+        Level level = levels[levelIdx];
+        if (avoidOccupied && !level.canFit(size)) {
+            return -1;
+        }
+        int length = size.getSpotsNeeded();
+        Row[] rows = level.getRows();
+        int lastRow = rows.length - 1;
+        if (!avoidOccupied) {
+            BookingIndex levelBookings = level.getBookings();
+            if (levelBookings != null) {
+                lastRow = Math.min(lastRow, levelBookings.conflictingRows(from, to).nextClearBit(0));
+            } else {
+                lastRow = Math.min(lastRow, 0);
+            }
+        }
+        for (int r = 0; r <= lastRow; r++) {
+            if (avoidOccupied && (rows[r].getAvailableSpots() < length || !rows[r].canFit(size))) {
+                continue;
+            }
+            int startPos = rows[r].findBookableRun(length, size, from, to, avoidOccupied);
+            if (startPos != -1) {
+                return ConsecutiveSpot.pack(levelIdx, r, startPos, length);
+            }
+        }
+        return -1;
+    }
+
+    // return false if the booking was already cancelled or redeemed
+    public boolean cancel(Booking booking) {
+        Level level = levels[ConsecutiveSpot.levelOf(booking.getSpot())];
+        synchronized (level) {
+            BookingIndex b = level.getRows()[ConsecutiveSpot.rowOf(booking.getSpot())].getBookings();
+            if (b == null || !b.remove(booking)) {
+                return false;
+            }
+            level.getBookings().remove(booking);
+            ParkingJournal j = journal;
+            if (j != null) {
+                j.logCancel(booking);
+            }
+            return true;
+        }
+    }
+
+    // put back a booking whose redemption failed
+    void restore(Booking booking) {
+        Level level = levels[ConsecutiveSpot.levelOf(booking.getSpot())];
+        synchronized (level) {
+            index(level, booking);
+            ParkingJournal j = journal;
+            if (j != null) {
+                j.logBook(booking);
+            }
+        }
+    }
+
+    // Replay a booking from a snapshot or journal; a booking that is already indexed is
+    // left alone, since a checkpoint may race a booking into both. New ids continue
+    // after the largest one recovered.
+    void recoverBooking(Booking booking) {
+        nextBookingId.accumulateAndGet(booking.getId(), Math::max);
+        Level level = levels[ConsecutiveSpot.levelOf(booking.getSpot())];
+        synchronized (level) {
+            BookingIndex b = level.getRows()[ConsecutiveSpot.rowOf(booking.getSpot())].getBookings();
+            if (b == null || !b.contains(booking)) {
+                index(level, booking);
+            }
+        }
+    }
+
+    // every booking still indexed, for a checkpoint
+    List<Booking> getBookings() {
+        List<Booking> bookings = new ArrayList<>();
+        for (Level level : levels) {
+            BookingIndex b = level.getBookings();
+            if (b != null) {
+                b.collect(bookings);
+            }
+        }
+        return bookings;
+    }
+
+    // add the booking to its row's index and to its level's; callers hold the level's monitor
+    private void index(Level level, Booking booking) {
+        level.getRows()[ConsecutiveSpot.rowOf(booking.getSpot())].getOrCreateBookings(this).add(booking);
+        level.getOrCreateBookings(this).add(booking);
+    }
+}
+
+class Booking {
+    private long id;
+    private long spot;
+    // size of vehicle the run was booked for; only that size may redeem it
+    private VehicleSize size;
+    private long from;
+    private long to;
+
+    public Booking(long _id, long _spot, VehicleSize _size, long _from, long _to) {
+        id = _id;
+        spot = _spot;
+        size = _size;
+        from = _from;
+        to = _to;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    // packed ConsecutiveSpot of the booked run
+    public long getSpot() {
+        return spot;
+    }
+
+    public VehicleSize getSize() {
+        return size;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public int getStartPos() {
+        return ConsecutiveSpot.startPosOf(spot);
+    }
+
+    public int getLength() {
+        return ConsecutiveSpot.lengthOf(spot);
+    }
+}
+
+/* Interval index of bookings, one for each row and one for each level. A treap keyed by
+   start time (ties by id) whose nodes also keep, for their subtree, the latest and the
+   earliest end time and the span of spots booked. A query skips every subtree that ends
+   before the window, starts after it or books other spots, so it costs O(log n) plus
+   the bookings that overlap, however long a single booking runs. Nodes are immutable and
+   a write copies the path to the root, so gates read the volatile root without locking;
+   writes happen under the level's monitor. */
+class BookingIndex {
+    private ParkingReservations owner;
+    private volatile BookingNode root;
+
+    public BookingIndex(ParkingReservations _owner) {
+        owner = _owner;
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public boolean contains(Booking booking) {
+        BookingNode n = root;
+        while (n != null) {
+            if (n.booking.getId() == booking.getId() && n.booking.getFrom() == booking.getFrom()) {
+                return true;
+            }
+            n = n.isBefore(booking.getFrom(), booking.getId()) ? n.right : n.left;
+        }
+        return false;
+    }
+
+    // append every booking in start order
+    public void collect(List<Booking> out) {
+        collect(root, out);
+    }
+
+    private static void collect(BookingNode n, List<Booking> out) {
+        if (n != null) {
+            collect(n.left, out);
+            out.add(n.booking);
+            collect(n.right, out);
+        }
+    }
+
+    public void add(Booking booking) {
+        pruneExpired();
+        BookingNode[] parts = split(root, booking.getFrom(), booking.getId());
+        BookingNode node = new BookingNode(booking, BookingNode.priorityOf(booking), null, null);
+        root = merge(merge(parts[0], node), parts[1]);
+    }
+
+    public boolean remove(Booking booking) {
+        BookingNode[] lower = split(root, booking.getFrom(), booking.getId());
+        BookingNode[] upper = split(lower[1], booking.getFrom(), booking.getId() + 1);
+        if (upper[0] == null) {
+            return false;
+        }
+        root = merge(lower[0], upper[1]);
+        return true;
+    }
+
+    // bookings that ended before now can not get in anyone's way
+    private void pruneExpired() {
+        BookingNode r = root;
+        long now = owner.now();
+        if (r == null || r.minTo > now) {
+            return;
+        }
+        List<Booking> expired = new ArrayList<>();
+        collectExpired(r, now, expired);
+        for (Booking b : expired) {
+            remove(b);
+        }
+    }
+
+    private static void collectExpired(BookingNode n, long now, List<Booking> expired) {
+        if (n == null || n.minTo > now) {
+            return;
+        }
+        collectExpired(n.left, now, expired);
+        if (n.booking.getTo() <= now) {
+            expired.add(n.booking);
+        }
+        collectExpired(n.right, now, expired);
+    }
+
+    // End position of the furthest booking overlapping spots [startPos, startPos + length)
+    // during [from, to), -1 if there is none.
+    public int conflictEnd(int startPos, int length, long from, long to) {
+        return conflictEnd(root, startPos, startPos + length, from, to);
+    }
+
+    private static int conflictEnd(BookingNode n, int startPos, int endPos, long from, long to) {
+        if (n == null || n.maxTo <= from || n.minStartPos >= endPos || n.maxEndPos <= startPos) {
+            return -1;
+        }
+        int end = conflictEnd(n.left, startPos, endPos, from, to);
+        Booking b = n.booking;
+        if (b.getFrom() < to) {
+            int bookedEnd = b.getStartPos() + b.getLength();
+            if (b.getTo() > from && b.getStartPos() < endPos && bookedEnd > startPos) {
+                end = Math.max(end, bookedEnd);
+            }
+            // the right subtree starts no earlier than b
+            end = Math.max(end, conflictEnd(n.right, startPos, endPos, from, to));
+        }
+        return end;
+    }
+
+    // conflictEnd for a walk-in: any booking overlapping [now, now + horizon)
+    public int walkInConflictEnd(int startPos, int length) {
+        if (root == null) {
+            return -1;
+        }
+        long now = owner.now();
+        return conflictEnd(startPos, length, now, now + owner.getHorizonMillis());
+    }
+
+    // rows of the bookings that overlap [from, to), for a level's index
+    public BitSet conflictingRows(long from, long to) {
+        BitSet rows = new BitSet();
+        collectRows(root, from, to, rows);
+        return rows;
+    }
+
+    private static void collectRows(BookingNode n, long from, long to, BitSet rows) {
+        if (n == null || n.maxTo <= from) {
+            return;
+        }
+        collectRows(n.left, from, to, rows);
+        Booking b = n.booking;
+        if (b.getFrom() < to) {
+            if (b.getTo() > from) {
+                rows.set(ConsecutiveSpot.rowOf(b.getSpot()));
+            }
+            collectRows(n.right, from, to, rows);
+        }
+    }
+
+    // the nodes before (from, id) and the rest, copying the path split
+    private static BookingNode[] split(BookingNode n, long from, long id) {
+        if (n == null) {
+            return new BookingNode[2];
+        }
+        if (n.isBefore(from, id)) {
+            BookingNode[] parts = split(n.right, from, id);
+            parts[0] = n.withChildren(n.left, parts[0]);
+            return parts;
+        }
+        BookingNode[] parts = split(n.left, from, id);
+        parts[1] = n.withChildren(parts[1], n.right);
+        return parts;
+    }
+
+    // every node of a comes before every node of b
+    private static BookingNode merge(BookingNode a, BookingNode b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority >= b.priority) {
+            return a.withChildren(a.left, merge(a.right, b));
+        }
+        return b.withChildren(merge(a, b.left), b.right);
+    }
+}
+
+// immutable treap node of a BookingIndex with the bounds of its subtree
+class BookingNode {
+    final Booking booking;
+    final int priority;
+    final BookingNode left;
+    final BookingNode right;
+    final long maxTo;
+    final long minTo;
+    final int minStartPos;
+    final int maxEndPos;
+
+    BookingNode(Booking _booking, int _priority, BookingNode _left, BookingNode _right) {
+        booking = _booking;
+        priority = _priority;
+        left = _left;
+        right = _right;
+        long max = booking.getTo();
+        long min = booking.getTo();
+        int minStart = booking.getStartPos();
+        int maxEnd = booking.getStartPos() + booking.getLength();
+        for (BookingNode child : new BookingNode[] {left, right}) {
+            if (child != null) {
+                max = Math.max(max, child.maxTo);
+                min = Math.min(min, child.minTo);
+                minStart = Math.min(minStart, child.minStartPos);
+                maxEnd = Math.max(maxEnd, child.maxEndPos);
+            }
+        }
+        maxTo = max;
+        minTo = min;
+        minStartPos = minStart;
+        maxEndPos = maxEnd;
+    }
+
+    // a scrambled id, so the treap stays balanced whatever order bookings come in
+    static int priorityOf(Booking booking) {
+        return Long.hashCode(booking.getId() * 0x9E3779B97F4A7C15L);
+    }
+
+    BookingNode withChildren(BookingNode _left, BookingNode _right) {
+        return new BookingNode(booking, priority, _left, _right);
+    }
+
+    boolean isBefore(long from, long id) {
+        return booking.getFrom() < from || (booking.getFrom() == from && booking.getId() < id);
+    }
+}
@@ -0,0 +1,17 @@
+import java.util.Random;
+
+// the vehicle mix the ParkingLot benchmark and stress test park
+class ParkingWorkload {
+    // 45% motorcycles, 45% cars, 10% buses
+    static VehicleSize mixedSize(Random random) {
+        int r = random.nextInt(100);
+        return r < 45 ? VehicleSize.Motorcycle : r < 90 ? VehicleSize.Compact : VehicleSize.Large;
+    }
+
+    static Vehicle vehicle(VehicleSize size, String licensePlate) {
+        Vehicle v = size == VehicleSize.Motorcycle ? new Motorcycle()
+                : size == VehicleSize.Compact ? new Car() : new Bus();
+        v.licensePlate = licensePlate;
+        return v;
+    }
+}
@@ -1,5 +1,24 @@
 package Management System.DesignRestaurant;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 class NoTableException extends Exception{
 
 	public NoTableException(Party p)
@@ -8,49 +27,123 @@ class NoTableException extends Exception{
 	}
 }
 
+// kitchen station that prepares a meal
+enum Station {
+	HOT_LINE, GRILL, COLD, PASTRY, BAR
+}
+
 class Meal {
 	private float price;
+	// exact price in cents, so totals do not pick up float rounding
+	private long priceCents;
+	private Station station;
+	// menu item the meal was ordered as, -1 for a meal off the menu
+	private int itemId;
 	
 	public Meal(float price) {
+		this(price, Station.HOT_LINE);
+	}
+	
+	public Meal(float price, Station station) {
 		this.price = price;
+		this.priceCents = Math.round(price * 100.0);
+		this.station = station;
+		this.itemId = -1;
+	}
+	
+	// a meal of the menu item at the item's current price, which it keeps from then on
+	public Meal(MenuItem item) {
+		this.price = item.getPriceCents() / 100f;
+		this.priceCents = item.getPriceCents();
+		this.station = item.getStation();
+		this.itemId = item.getId();
+	}
+	
+	public int getItemId() {
+		return this.itemId;
 	}
 	
 	public float getPrice() {
 		return this.price;
 	}
+	
+	public Station getStation() {
+		return this.station;
+	}
+	
+	public long getPriceCents() {
+		return this.priceCents;
+	}
+}
+
+// a fixed block of meals; an order is a linked chain of these
+class MealChunk {
+	static final int SIZE = 16;
+	Meal[] meals = new Meal[SIZE];
+	int size;
+	MealChunk next;
 }
 
+/* Meals are kept in a chain of chunks and the bill as a running total in cents, so
+   adding a meal, merging another order and reading the bill are all O(1). */
 class Order {
-	private List<Meal> meals;
+	private MealChunk head;
+	private MealChunk tail;
+	private int mealCount;
+	private long totalCents;
     // private Table table; // table the order belongs to
 	
 	public Order() {
-		meals = new ArrayList<Meal>();
-        // table = _table;
+		head = new MealChunk();
+		tail = head;
+	}
+	
+	public void addMeal(Meal meal) {
+		if (tail.size == MealChunk.SIZE) {
+			tail.next = new MealChunk();
+			tail = tail.next;
+		}
+		tail.meals[tail.size++] = meal;
+		mealCount++;
+		totalCents += meal.getPriceCents();
 	}
 	
+	// read-only copy of the meals in order, built on every call; add meals with addMeal
 	public List<Meal> getMeals() {
-		return meals;
+		List<Meal> meals = new ArrayList<Meal>(mealCount);
+		for (MealChunk c = head; c != null; c = c.next) {
+			for (int i = 0; i < c.size; i++) {
+				meals.add(c.meals[i]);
+			}
+		}
+		return Collections.unmodifiableList(meals);
+	}
+	
+	public int getMealCount() {
+		return mealCount;
 	}
-
-    // public Table getTable() {
-    //     return table;
-    // }
 	
+	// Append the other order's meals by linking its chunks after ours. The other order
+	// is emptied, since its chunks now belong to this one.
 	public void mergeOrder(Order order) {
-		if(order != null) {
-			for(Meal meal : order.getMeals()){
-				meals.add(meal);
-			}
+		if(order != null && order != this && order.mealCount > 0) {
+			tail.next = order.head;
+			tail = order.tail;
+			mealCount += order.mealCount;
+			totalCents += order.totalCents;
+			order.head = new MealChunk();
+			order.tail = order.head;
+			order.mealCount = 0;
+			order.totalCents = 0;
 		}
 	}
 	
+	public long getTotalCents() {
+		return totalCents;
+	}
+	
 	public float checkout() {
-		int bill = 0;
-		for(Meal meal : meals) {
-			bill += meal.getPrice();
-		}
-		return bill;
+		return totalCents / 100f;
 	}
 }
 
@@ -66,15 +159,42 @@ class Party {
 	}
 }
 
+// an order appended to a table's log, newest first
+class OrderNode {
+	final Order order;
+	final OrderNode next;
+	
+	OrderNode(Order _order, OrderNode _next) {
+		order = _order;
+		next = _next;
+	}
+}
+
 class Table implements Comparable<Table>{
 	private boolean isOccupied;
 	private int capacity;
 	private Order order;
+	// orders appended by any thread and not yet folded into order
+	private AtomicReference<OrderNode> pendingOrders;
+	// when the current party sat down, for turn time statistics
+	private long seatedAt;
+	// tables pushed together with this one for a large party, released with it
+	private List<Table> joined;
+	// table this one is pushed against, null unless it is in another table's joined list
+	private Table primary;
+	// position in the restaurant's table list, -1 until added
+	int floorIndex = -1;
+	// whether the restaurant currently lists the table as free
+	boolean listedFree;
+	// set while the table waits in the restaurant's dirty queue for the next floor status
+	final AtomicBoolean floorDirty = new AtomicBoolean();
 	
 	public Table(int _capacity) {
 		capacity = _capacity;
 		isOccupied = false;
 		order = null;
+		pendingOrders = new AtomicReference<>();
+		joined = new ArrayList<>();
 	}
 	
 	public int getCapacity() {
@@ -85,19 +205,71 @@ class Table implements Comparable<Table>{
 		return isOccupied;
 	}
 	
-	public Order getCurrentOrder() {
+	public synchronized Order getCurrentOrder() {
+		foldPendingOrders();
 		return order;
 	}
+	
+	// Thread-safe and lock-free: push the order onto the table's log. The caller must not
+	// touch the order afterwards; it is merged into the table's order on the next read.
+	public void appendOrder(Order newOrder) {
+		OrderNode head;
+		do {
+			head = pendingOrders.get();
+		} while (!pendingOrders.compareAndSet(head, new OrderNode(newOrder, head)));
+	}
+	
+	// take the table's whole order, including every append so far, leaving it empty
+	public synchronized Order takeOrderForCheckout() {
+		foldPendingOrders();
+		Order taken = order;
+		order = null;
+		return taken;
+	}
+	
+	// merge the appended orders, oldest first; getAndSet hands each one over exactly once
+	private void foldPendingOrders() {
+		OrderNode node = pendingOrders.getAndSet(null);
+		OrderNode oldestFirst = null;
+		for (; node != null; node = node.next) {
+			oldestFirst = new OrderNode(node.order, oldestFirst);
+		}
+		for (; oldestFirst != null; oldestFirst = oldestFirst.next) {
+			if (order == null) {
+				order = oldestFirst.order;
+			} else {
+				order.mergeOrder(oldestFirst.order);
+			}
+		}
+	}
 
 	public void setOccupied() {
 		isOccupied = true;
+		seatedAt = System.currentTimeMillis();
+	}
+	
+	public long getSeatedAt() {
+		return seatedAt;
+	}
+	
+	public List<Table> getJoinedTables() {
+		return joined;
+	}
+	
+	public Table getPrimary() {
+		return primary;
+	}
+	
+	void setPrimary(Table _primary) {
+		primary = _primary;
 	}
 	
 	public void setNotOccupied() {
 		isOccupied = false;
 	}
 	
-	public void setOrder(Order newOrder) {
+	public synchronized void setOrder(Order newOrder) {
+        foldPendingOrders();
         if (newOrder == null) {
             order = null;
             return;
@@ -115,63 +287,806 @@ class Table implements Comparable<Table>{
 	}
 }
 
+// an entry of the menu at one price; a price change creates a new item with the same id
+class MenuItem {
+	private int id;
+	private String name;
+	private long priceCents;
+	private Station station;
+	
+	public MenuItem(int _id, String _name, long _priceCents, Station _station) {
+		id = _id;
+		name = _name;
+		priceCents = _priceCents;
+		station = _station;
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public long getPriceCents() {
+		return priceCents;
+	}
+	
+	public Station getStation() {
+		return station;
+	}
+}
+
+/* One version of the menu. Never changes once built: items by id in an array, by
+   lower-cased name in a hash map, and by name in a sorted array for prefix search. */
+class MenuSnapshot {
+	private long version;
+	// index is the item id, null for removed items
+	private MenuItem[] byId;
+	private Map<String, MenuItem> byName;
+	private String[] sortedNames;
+	private MenuItem[] sortedItems;
+	private List<Meal> meals;
+	
+	MenuSnapshot(long _version, MenuItem[] _byId) {
+		version = _version;
+		byId = _byId;
+		byName = new HashMap<>();
+		List<MenuItem> items = new ArrayList<>();
+		for (MenuItem item : byId) {
+			if (item != null) {
+				byName.put(item.getName().toLowerCase(), item);
+				items.add(item);
+			}
+		}
+		items.sort((a, b) -> a.getName().toLowerCase().compareTo(b.getName().toLowerCase()));
+		sortedItems = items.toArray(new MenuItem[0]);
+		sortedNames = new String[sortedItems.length];
+		List<Meal> menuMeals = new ArrayList<>();
+		for (int i = 0; i < sortedItems.length; i++) {
+			sortedNames[i] = sortedItems[i].getName().toLowerCase();
+			menuMeals.add(new Meal(sortedItems[i]));
+		}
+		meals = Collections.unmodifiableList(menuMeals);
+	}
+	
+	public long getVersion() {
+		return version;
+	}
+	
+	MenuItem[] getItemsById() {
+		return byId;
+	}
+	
+	public MenuItem getItem(int id) {
+		return id >= 0 && id < byId.length ? byId[id] : null;
+	}
+	
+	public MenuItem findByName(String name) {
+		return byName.get(name.toLowerCase());
+	}
+	
+	// items whose name starts with prefix, ignoring case, in name order
+	public List<MenuItem> searchPrefix(String prefix, int limit) {
+		String p = prefix.toLowerCase();
+		int i = Arrays.binarySearch(sortedNames, p);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		List<MenuItem> found = new ArrayList<>();
+		for (; i < sortedNames.length && found.size() < limit && sortedNames[i].startsWith(p); i++) {
+			found.add(sortedItems[i]);
+		}
+		return found;
+	}
+	
+	// one meal per item at this version's prices, in name order
+	public List<Meal> getMeals() {
+		return meals;
+	}
+}
+
+/* The restaurant's menu. Reads go to the current MenuSnapshot through a volatile field
+   and never block; changes are rare and build a new snapshot under the catalog's lock.
+   Ids are never reused, and meals already ordered keep the price they were ordered at. */
+class MenuCatalog {
+	private volatile MenuSnapshot snapshot;
+	
+	public MenuCatalog() {
+		snapshot = new MenuSnapshot(0, new MenuItem[0]);
+	}
+	
+	public MenuSnapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	public MenuItem getItem(int id) {
+		return snapshot.getItem(id);
+	}
+	
+	public MenuItem findByName(String name) {
+		return snapshot.findByName(name);
+	}
+	
+	public List<MenuItem> searchPrefix(String prefix, int limit) {
+		return snapshot.searchPrefix(prefix, limit);
+	}
+	
+	// returns the new item's id
+	public synchronized int addItem(String name, float price, Station station) {
+		if (snapshot.findByName(name) != null) {
+			throw new IllegalArgumentException("menu already has " + name);
+		}
+		MenuItem[] byId = snapshot.getItemsById();
+		MenuItem[] next = Arrays.copyOf(byId, byId.length + 1);
+		next[byId.length] = new MenuItem(byId.length, name, Math.round(price * 100.0), station);
+		publish(next);
+		return byId.length;
+	}
+	
+	public synchronized void updatePrice(int id, float price) {
+		MenuItem item = requireItem(id);
+		MenuItem[] next = snapshot.getItemsById().clone();
+		next[id] = new MenuItem(id, item.getName(), Math.round(price * 100.0), item.getStation());
+		publish(next);
+	}
+	
+	public synchronized void removeItem(int id) {
+		requireItem(id);
+		MenuItem[] next = snapshot.getItemsById().clone();
+		next[id] = null;
+		publish(next);
+	}
+	
+	private MenuItem requireItem(int id) {
+		MenuItem item = snapshot.getItem(id);
+		if (item == null) {
+			throw new IllegalArgumentException("no menu item " + id);
+		}
+		return item;
+	}
+	
+	private void publish(MenuItem[] byId) {
+		snapshot = new MenuSnapshot(snapshot.getVersion() + 1, byId);
+	}
+}
+
+// one meal for one table, as the kitchen sees it
+class KitchenTicket {
+	private Table table;
+	private Meal meal;
+	
+	public KitchenTicket(Table _table, Meal _meal) {
+		table = _table;
+		meal = _meal;
+	}
+	
+	public Table getTable() {
+		return table;
+	}
+	
+	public Meal getMeal() {
+		return meal;
+	}
+}
+
+/* Tickets waiting for or being prepared at the kitchen's stations. A semaphore holds
+   one permit per ticket the kitchen can have in flight: submitting an order takes a
+   permit per meal, all or nothing, and completing a batch gives them back. When the
+   kitchen is saturated, submit blocks and trySubmit gives up, which pushes back on the
+   servers instead of letting the queue grow without bound. An order with more meals
+   than the kitchen can ever hold is rejected, since waiting for it would never end. */
+class Kitchen {
+	private int maxTickets;
+	private Semaphore capacity;
+	private Map<Station, BlockingQueue<KitchenTicket>> queues;
+	
+	public Kitchen(int _maxTickets) {
+		maxTickets = _maxTickets;
+		capacity = new Semaphore(maxTickets, true);
+		queues = new EnumMap<>(Station.class);
+		for (Station s : Station.values()) {
+			queues.put(s, new LinkedBlockingQueue<>());
+		}
+	}
+	
+	public void submit(Table table, Order order) {
+		List<Meal> meals = checkedMeals(order);
+		capacity.acquireUninterruptibly(meals.size());
+		enqueue(table, meals);
+	}
+	
+	// false if the kitchen did not have room for the whole order within the timeout
+	public boolean trySubmit(Table table, Order order, long timeout, TimeUnit unit) throws InterruptedException {
+		List<Meal> meals = checkedMeals(order);
+		if (!capacity.tryAcquire(meals.size(), timeout, unit)) {
+			return false;
+		}
+		enqueue(table, meals);
+		return true;
+	}
+	
+	// the fair semaphore would park an oversize order forever, and everyone queued behind it
+	private List<Meal> checkedMeals(Order order) {
+		List<Meal> meals = order.getMeals();
+		if (meals.size() > maxTickets) {
+			throw new IllegalArgumentException("order of " + meals.size()
+					+ " meals is larger than the kitchen's " + maxTickets + " tickets");
+		}
+		return meals;
+	}
+	
+	public int getMaxTickets() {
+		return maxTickets;
+	}
+	
+	private void enqueue(Table table, List<Meal> meals) {
+		for (Meal m : meals) {
+			queues.get(m.getStation()).add(new KitchenTicket(table, m));
+		}
+	}
+	
+	// Wait up to timeout for the station's next ticket, then take up to maxBatch of its
+	// tickets in one go so the station can prepare them together. Empty if none came.
+	public List<KitchenTicket> takeBatch(Station station, int maxBatch, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		List<KitchenTicket> batch = new ArrayList<>();
+		BlockingQueue<KitchenTicket> queue = queues.get(station);
+		KitchenTicket first = queue.poll(timeout, unit);
+		if (first != null) {
+			batch.add(first);
+			queue.drainTo(batch, maxBatch - 1);
+		}
+		return batch;
+	}
+	
+	// the station finished the batch, freeing room for new tickets
+	public void complete(List<KitchenTicket> batch) {
+		capacity.release(batch.size());
+	}
+	
+	public int getQueuedTickets(Station station) {
+		return queues.get(station).size();
+	}
+	
+	public int getAvailableCapacity() {
+		return capacity.availablePermits();
+	}
+}
+
+// what the floor status shows for one table, as of one version
+class TableStatus {
+	private int index;
+	private int capacity;
+	private boolean occupied;
+	// -1 when the table has no order
+	private long orderCents;
+	private long version;
+	
+	public TableStatus(int _index, int _capacity, boolean _occupied, long _orderCents, long _version) {
+		index = _index;
+		capacity = _capacity;
+		occupied = _occupied;
+		orderCents = _orderCents;
+		version = _version;
+	}
+	
+	public int getIndex() {
+		return index;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public boolean isAvailable() {
+		return !occupied;
+	}
+	
+	public boolean hasOrder() {
+		return orderCents >= 0;
+	}
+	
+	public long getOrderCents() {
+		return orderCents;
+	}
+	
+	// floor status version this record was last changed in
+	public long getVersion() {
+		return version;
+	}
+	
+	public void appendTo(Appendable out) throws IOException {
+		out.append("Table: ").append(Integer.toString(index))
+				.append(", table size: ").append(Integer.toString(capacity))
+				.append(", isAvailable: ").append(Boolean.toString(!occupied)).append('.');
+		if (orderCents < 0) {
+			out.append(" No current order for this table");
+		} else {
+			out.append(" Order price: ").append(Float.toString(orderCents / 100f));
+		}
+		out.append(".\n");
+	}
+}
+
+/* Immutable, versioned snapshot of every table. Records live in fixed-size chunks and
+   a new version copies only the chunks of the changed tables plus the small arrays of
+   chunk references and versions, sharing every other chunk with the previous snapshot.
+   Each chunk keeps the version of its newest record, so appendChangesSince skips whole
+   unchanged chunks and a poller pays for what changed. */
+class FloorStatus {
+	static final int CHUNK = 64;
+	
+	private long version;
+	private int size;
+	private TableStatus[][] chunks;
+	private long[] chunkVersions;
+	
+	FloorStatus(long _version, int _size, TableStatus[][] _chunks, long[] _chunkVersions) {
+		version = _version;
+		size = _size;
+		chunks = _chunks;
+		chunkVersions = _chunkVersions;
+	}
+	
+	static FloorStatus empty() {
+		return new FloorStatus(0, 0, new TableStatus[0][], new long[0]);
+	}
+	
+	public long getVersion() {
+		return version;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public TableStatus getTable(int index) {
+		return chunks[index / CHUNK][index % CHUNK];
+	}
+	
+	// the snapshot at the given version with the records of the changed tables replaced or
+	// added; each touched chunk is copied once however many of its tables changed
+	FloorStatus withAll(List<TableStatus> changed, long newVersion) {
+		int newSize = size;
+		for (TableStatus status : changed) {
+			newSize = Math.max(newSize, status.getIndex() + 1);
+		}
+		int numChunks = Math.max(chunks.length, (newSize + CHUNK - 1) / CHUNK);
+		TableStatus[][] newChunks = Arrays.copyOf(chunks, numChunks);
+		long[] newChunkVersions = Arrays.copyOf(chunkVersions, numChunks);
+		boolean[] copied = new boolean[numChunks];
+		for (TableStatus status : changed) {
+			int c = status.getIndex() / CHUNK;
+			if (!copied[c]) {
+				newChunks[c] = c < chunks.length ? chunks[c].clone() : new TableStatus[CHUNK];
+				newChunkVersions[c] = newVersion;
+				copied[c] = true;
+			}
+			newChunks[c][status.getIndex() % CHUNK] = status;
+		}
+		return new FloorStatus(newVersion, newSize, newChunks, newChunkVersions);
+	}
+	
+	public void appendTo(Appendable out) throws IOException {
+		appendChangesSince(-1, out);
+		out.append("*****************************************\n");
+	}
+	
+	// stream the tables whose record changed after the given version, in table order
+	public void appendChangesSince(long sinceVersion, Appendable out) throws IOException {
+		for (int c = 0; c < chunks.length; c++) {
+			if (chunkVersions[c] <= sinceVersion) {
+				continue;
+			}
+			for (TableStatus status : chunks[c]) {
+				if (status != null && status.getVersion() > sinceVersion) {
+					status.appendTo(out);
+				}
+			}
+		}
+	}
+}
+
+// a party on the waitlist; table is set once the party has been seated
+class WaitingParty {
+	private Party party;
+	private long arrivalTime;
+	private long estimatedWait;
+	private Table table;
+	
+	public WaitingParty(Party _party, long _arrivalTime, long _estimatedWait) {
+		party = _party;
+		arrivalTime = _arrivalTime;
+		estimatedWait = _estimatedWait;
+	}
+	
+	public Party getParty() {
+		return party;
+	}
+	
+	public long getArrivalTime() {
+		return arrivalTime;
+	}
+	
+	// milliseconds the party was told to expect when it joined
+	public long getEstimatedWait() {
+		return estimatedWait;
+	}
+	
+	public Table getTable() {
+		return table;
+	}
+	
+	public boolean isSeated() {
+		return table != null;
+	}
+	
+	void seat(Table _table) {
+		table = _table;
+	}
+}
+
+interface SeatingListener {
+	// called when a waiting party has been given a table
+	void onSeated(WaitingParty party);
+}
+
 public class Restaurant {
+	// a freed table prefers the longest waiting party that leaves at most this many seats empty
+	private static final int SIZE_BAND = 2;
+	// turn time assumed for a table size until one has been measured
+	private static final long DEFAULT_TURN_MILLIS = 45 * 60 * 1000;
+	// weight of the latest turn in the moving average
+	private static final double TURN_ALPHA = 0.2;
+	
+
 	private List<Table> tables;
-	private List<Meal> menu;
+	// free tables by capacity, so seating a party is a ceiling lookup instead of a scan
+	private TreeMap<Integer, Deque<Table>> freeTables;
+	// number of tables of each capacity
+	private TreeMap<Integer, Integer> tableCounts;
+	// waiting parties by size, each queue in arrival order
+	private TreeMap<Integer, Deque<WaitingParty>> waitlist;
+	private int waiting;
+	// moving average of how long a table of each capacity stays occupied
+	private Map<Integer, Double> turnMillis;
+	private boolean tableCombining;
+	private SeatingListener seatingListener;
+	private Kitchen kitchen;
+	// latest snapshot for the host tablets, replaced under floorLock by a poll that finds
+	// tables in dirtyTables; changing a table only queues it and never takes floorLock
+	private volatile FloorStatus floorStatus;
+	private Object floorLock;
+	private ConcurrentLinkedQueue<Table> dirtyTables;
+	private MenuCatalog menu;
 	
 	public Restaurant() {
         tables = new ArrayList<>();
-        menu = new ArrayList<>();
+        freeTables = new TreeMap<>();
+        tableCounts = new TreeMap<>();
+        waitlist = new TreeMap<>();
+        turnMillis = new HashMap<>();
+        floorStatus = FloorStatus.empty();
+        floorLock = new Object();
+        dirtyTables = new ConcurrentLinkedQueue<>();
+        menu = new MenuCatalog();
 	}
 	
-	public List<Meal> getMenu() {
+	public MenuCatalog getMenuCatalog() {
 		return menu;
 	}
+	
+	// the current menu, one meal per item at today's price
+	public List<Meal> getMenu() {
+		return menu.getSnapshot().getMeals();
+	}
 
 	public void addTable(Table table) {
+        table.floorIndex = tables.size();
         tables.add(table);
-        Collections.sort(tables);
+        tableCounts.merge(table.getCapacity(), 1, Integer::sum);
+        if (!table.getIsOccupied()) {
+            offerTable(table);
+        } else {
+            markDirty(table);
+        }
+	}
+	
+	// Never blocks on the order path: changes only mark their tables, and the poll that
+	// finds marked tables folds just those into one new version under floorLock. The
+	// snapshot does not change after it was returned.
+	public FloorStatus getFloorStatus() {
+        if (dirtyTables.isEmpty()) {
+            return floorStatus;
+        }
+        synchronized (floorLock) {
+            FloorStatus current = floorStatus;
+            long version = current.getVersion() + 1;
+            List<TableStatus> changed = new ArrayList<>();
+            Table t;
+            while ((t = dirtyTables.poll()) != null) {
+                // clear before reading, so a change after the read marks the table again
+                t.floorDirty.set(false);
+                long orderCents;
+                boolean occupied;
+                synchronized (t) {
+                    Order order = t.getCurrentOrder();
+                    orderCents = order == null ? -1 : order.getTotalCents();
+                    occupied = t.getIsOccupied();
+                }
+                changed.add(new TableStatus(t.floorIndex, t.getCapacity(), occupied, orderCents, version));
+            }
+            if (!changed.isEmpty()) {
+                floorStatus = current.withAll(changed, version);
+            }
+            return floorStatus;
+        }
+	}
+	
+	// queue the table for the next floor status poll; O(1), takes no lock
+	private void markDirty(Table t) {
+        if (t.floorDirty.compareAndSet(false, true)) {
+            dirtyTables.add(t);
+        }
+	}
+	
+	// let parties too large for any table be seated at several free tables pushed together
+	public void setTableCombining(boolean _tableCombining) {
+        tableCombining = _tableCombining;
+        if (tableCombining) {
+            combineTables();
+        }
+	}
+	
+	public void setSeatingListener(SeatingListener listener) {
+        seatingListener = listener;
+	}
+	
+	public int getWaitlistSize() {
+        return waiting;
+	}
+	
+	/* Put the party on the waitlist. It is seated straight away if a table is free,
+	   otherwise as soon as checkOut frees one that suits it; the returned entry tells
+	   the table once that happened, and the seating listener is called. */
+	public WaitingParty joinWaitlist(Party p) {
+        WaitingParty w = new WaitingParty(p, System.currentTimeMillis(), estimateWait(p));
+        try {
+            w.seat(findTable(p));
+            notifySeated(w);
+            return w;
+        } catch (NoTableException e) {
+            // wait for a table below
+        }
+        waitlist.computeIfAbsent(p.getSize(), k -> new ArrayDeque<>()).add(w);
+        waiting++;
+        if (tableCombining) {
+            combineTables();
+        }
+        return w;
+	}
+	
+	public boolean leaveWaitlist(WaitingParty w) {
+        Deque<WaitingParty> queue = waitlist.get(w.getParty().getSize());
+        if (queue == null || !queue.remove(w)) {
+            return false;
+        }
+        if (queue.isEmpty()) {
+            waitlist.remove(w.getParty().getSize());
+        }
+        waiting--;
+        return true;
+	}
+	
+	/* Expected milliseconds until a party of this size gets a table: 0 when one is free,
+	   otherwise the parties already waiting for tables that fit it, spread over those
+	   tables, times the tables' average turn time, plus half a turn for the table in
+	   use to empty. -1 when no single table can ever fit the party. */
+	public long estimateWait(Party p) {
+        if (freeTables.ceilingKey(p.getSize()) != null) {
+            return 0;
+        }
+        int fitting = 0;
+        double turnSum = 0;
+        for (Map.Entry<Integer, Integer> e : tableCounts.tailMap(p.getSize(), true).entrySet()) {
+            fitting += e.getValue();
+            turnSum += e.getValue() * turnMillis.getOrDefault(e.getKey(), (double) DEFAULT_TURN_MILLIS);
+        }
+        if (fitting == 0) {
+            return -1;
+        }
+        int ahead = 0;
+        for (Deque<WaitingParty> queue : waitlist.tailMap(p.getSize(), true).values()) {
+            ahead += queue.size();
+        }
+        return (long) (turnSum / fitting * ((double) ahead / fitting + 0.5));
 	}
 
-	public void findTable(Party p) throws NoTableException {
-        for (Table t : tables) {
-            if (t.getCapacity() >= p.getSize() && !t.getIsOccupied()) {
-                t.setOccupied();
+	// seat the party at the smallest free table that fits it
+	public Table findTable(Party p) throws NoTableException {
+        Map.Entry<Integer, Deque<Table>> entry = freeTables.ceilingEntry(p.getSize());
+        if (entry == null) {
+            throw new NoTableException(p);
+        }
+        Table t = entry.getValue().poll();
+        if (entry.getValue().isEmpty()) {
+            freeTables.remove(entry.getKey());
+        }
+        t.listedFree = false;
+        t.setOccupied();
+        markDirty(t);
+        return t;
+	}
+
+	// give a free table to the best waiting party, or index it as free if nobody fits
+	private void offerTable(Table t) {
+        if (t.listedFree) {
+            // already free; listing it twice would seat two parties at it
+            return;
+        }
+        WaitingParty w = pickWaitingParty(t.getCapacity());
+        if (w == null) {
+            t.listedFree = true;
+            freeTables.computeIfAbsent(t.getCapacity(), k -> new ArrayDeque<>()).add(t);
+            markDirty(t);
+            return;
+        }
+        leaveWaitlist(w);
+        t.setOccupied();
+        markDirty(t);
+        w.seat(t);
+        notifySeated(w);
+	}
+	
+	// FIFO within the size band just below the capacity, else the longest waiting that fits
+	private WaitingParty pickWaitingParty(int capacity) {
+        WaitingParty inBand = null;
+        WaitingParty any = null;
+        for (Map.Entry<Integer, Deque<WaitingParty>> e : waitlist.headMap(capacity, true).entrySet()) {
+            WaitingParty head = e.getValue().peek();
+            if (capacity - e.getKey() <= SIZE_BAND
+                    && (inBand == null || head.getArrivalTime() < inBand.getArrivalTime())) {
+                inBand = head;
+            }
+            if (any == null || head.getArrivalTime() < any.getArrivalTime()) {
+                any = head;
+            }
+        }
+        return inBand != null ? inBand : any;
+	}
+	
+	// seat parties larger than every free table at the largest free tables pushed together
+	private void combineTables() {
+        while (!waitlist.isEmpty() && !freeTables.isEmpty()) {
+            WaitingParty oldest = null;
+            for (Deque<WaitingParty> queue : waitlist.tailMap(freeTables.lastKey(), false).values()) {
+                WaitingParty head = queue.peek();
+                if (oldest == null || head.getArrivalTime() < oldest.getArrivalTime()) {
+                    oldest = head;
+                }
+            }
+            if (oldest == null) {
                 return;
             }
+            List<Table> picked = new ArrayList<>();
+            int seats = 0;
+            for (Deque<Table> free : freeTables.descendingMap().values()) {
+                for (Table t : free) {
+                    if (seats >= oldest.getParty().getSize()) {
+                        break;
+                    }
+                    picked.add(t);
+                    seats += t.getCapacity();
+                }
+            }
+            if (seats < oldest.getParty().getSize()) {
+                return;
+            }
+            for (Table t : picked) {
+                Deque<Table> free = freeTables.get(t.getCapacity());
+                free.remove(t);
+                if (free.isEmpty()) {
+                    freeTables.remove(t.getCapacity());
+                }
+                t.listedFree = false;
+                t.setOccupied();
+                markDirty(t);
+            }
+            Table primary = picked.get(0);
+            for (Table t : picked.subList(1, picked.size())) {
+                t.setPrimary(primary);
+                primary.getJoinedTables().add(t);
+            }
+            leaveWaitlist(oldest);
+            oldest.seat(primary);
+            notifySeated(oldest);
         }
-        throw new NoTableException(p);
 	}
 	
+	private void notifySeated(WaitingParty w) {
+        if (seatingListener != null) {
+            seatingListener.onSeated(w);
+        }
+	}
+	
+	private void recordTurn(Table t) {
+        double turn = System.currentTimeMillis() - t.getSeatedAt();
+        Double average = turnMillis.get(t.getCapacity());
+        turnMillis.put(t.getCapacity(), average == null ? turn : average + TURN_ALPHA * (turn - average));
+	}
+	
+	// send orders through the kitchen's ticket queue from now on
+	public void setKitchen(Kitchen _kitchen) {
+        kitchen = _kitchen;
+	}
+	
+	public Kitchen getKitchen() {
+        return kitchen;
+	}
+	
+	// Thread-safe: servers and kiosks may call it concurrently. Blocks while the kitchen
+	// is saturated; split orders larger than the kitchen's getMaxTickets() before taking them.
 	public void takeOrder(Table table, Order order) {
-        table.setOrder(order);
+        if (kitchen != null) {
+            kitchen.submit(table, order);
+        }
+        table.appendOrder(order);
+        markDirty(table);
+	}
+	
+	// like takeOrder, but gives up and returns false when the kitchen stays saturated
+	public boolean tryTakeOrder(Table table, Order order, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (kitchen != null && !kitchen.trySubmit(table, order, timeout, unit)) {
+            return false;
+        }
+        table.appendOrder(order);
+        markDirty(table);
+        return true;
 	}
 	
+	// checking out a table pushed against another checks out the whole group through its primary
 	public float checkOut(Table t) {
+        if (t.getPrimary() != null) {
+            t = t.getPrimary();
+        }
         float price = 0;
-        if (t.getCurrentOrder() != null) {
-            price = t.getCurrentOrder().checkout();
+        Order order = t.takeOrderForCheckout();
+        if (order != null) {
+            price = order.checkout();
         }
-        t.setOrder(null);
-        t.setNotOccupied();
+        if (t.getIsOccupied()) {
+            recordTurn(t);
+            t.setNotOccupied();
+            // hand the freed tables straight to waiting parties
+            List<Table> freed = new ArrayList<>(t.getJoinedTables());
+            t.getJoinedTables().clear();
+            freed.add(0, t);
+            for (Table f : freed) {
+                f.setPrimary(null);
+                f.setNotOccupied();
+                offerTable(f);
+            }
+            if (tableCombining) {
+                combineTables();
+            }
+        }
+        markDirty(t);
         return price;
 	}
 	
 	
 	
 	public String restaurantDescription() {
-		String description = "";
-		for(int i = 0; i < tables.size(); i++) {
-			Table table = tables.get(i);
-			description += ("Table: " + i + ", table size: " + table.getCapacity() + ", isAvailable: " + !table.getIsOccupied() + ".");
-			if(table.getCurrentOrder() == null)
-				description += " No current order for this table"; 
-			else
-				description +=  " Order price: " + table.getCurrentOrder().checkout();
-			
-			description += ".\n";
-		}
-		description += "*****************************************\n";
-		return description;
-	}
-}
\ No newline at end of file
+		StringBuilder description = new StringBuilder();
+		try {
+			getFloorStatus().appendTo(description);
+		} catch (IOException e) {
+			// a StringBuilder does not throw
+			throw new IllegalStateException(e);
+		}
+		return description.toString();
+	}
+}
@@ -0,0 +1,172 @@
+package Management System.DesignRestaurant;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Drives the whole ordering pipeline, from servers through the kitchen to the cashier.
+   javac rejects the package line, whose name has spaces, so compile a copy of this
+   directory without it:
+     mkdir -p /tmp/restaurant && for f in *.java; do sed '/^package /d' "$f" > /tmp/restaurant/"$f"; done
+     javac -d /tmp/restaurant /tmp/restaurant/*.java && java -cp /tmp/restaurant RestaurantPipelineStressTest [servers] [ordersPerServer]
+   Servers take orders for random tables from many threads while one cook per station
+   works through the kitchen in batches and a cashier settles random tables as it goes.
+   After the last table is checked out, every cent ordered has to show up on a bill,
+   all kitchen permits must be back with no ticket left, and the floor status must show
+   each table free. An order larger than the whole kitchen has to be refused rather than
+   block. Any of these going wrong, or a server, cook or cashier throwing, ends the run
+   with an exception. */
+class RestaurantPipelineStressTest {
+	private static final int TABLES = 32;
+	private static final int MAX_TICKETS = 64;
+
+	public static void main(String[] args) throws Exception {
+		int servers = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+		int ordersPerServer = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+
+		Restaurant restaurant = new Restaurant();
+		Kitchen kitchen = new Kitchen(MAX_TICKETS);
+		restaurant.setKitchen(kitchen);
+		Table[] tables = new Table[TABLES];
+		for (int i = 0; i < TABLES; i++) {
+			restaurant.addTable(new Table(4));
+		}
+		for (int i = 0; i < TABLES; i++) {
+			tables[i] = restaurant.findTable(new Party(2));
+		}
+
+		AtomicLong ordered = new AtomicLong();
+		AtomicLong billed = new AtomicLong();
+		AtomicLong rejected = new AtomicLong();
+		CountDownLatch serversDone = new CountDownLatch(servers);
+		Station[] stations = Station.values();
+
+		ExecutorService pool = Executors.newCachedThreadPool();
+		// get() on these rethrows whatever the thread threw
+		List<Future<?>> workers = new ArrayList<>();
+		for (Station station : stations) {
+			workers.add(pool.submit(() -> {
+				while (true) {
+					List<KitchenTicket> batch = kitchen.takeBatch(station, 8, 10, TimeUnit.MILLISECONDS);
+					kitchen.complete(batch);
+					if (batch.isEmpty() && serversDone.getCount() == 0
+							&& kitchen.getQueuedTickets(station) == 0) {
+						return null;
+					}
+				}
+			}));
+		}
+
+		workers.add(pool.submit(() -> {
+			Random random = new Random(7);
+			while (serversDone.getCount() > 0) {
+				Order order = tables[random.nextInt(TABLES)].takeOrderForCheckout();
+				if (order != null) {
+					billed.addAndGet(order.getTotalCents());
+				}
+			}
+		}));
+
+		long start = System.nanoTime();
+		for (int s = 0; s < servers; s++) {
+			int seed = s;
+			workers.add(pool.submit(() -> {
+				Random random = new Random(seed);
+				try {
+					for (int i = 0; i < ordersPerServer; i++) {
+						Order order = new Order();
+						int meals = 1 + random.nextInt(4);
+						for (int m = 0; m < meals; m++) {
+							order.addMeal(new Meal((1 + random.nextInt(3000)) / 100f,
+									stations[random.nextInt(stations.length)]));
+						}
+						long cents = order.getTotalCents();
+						Table table = tables[random.nextInt(TABLES)];
+						if ((i & 7) == 0) {
+							if (restaurant.tryTakeOrder(table, order, 1, TimeUnit.MILLISECONDS)) {
+								ordered.addAndGet(cents);
+							} else {
+								rejected.incrementAndGet();
+							}
+						} else {
+							restaurant.takeOrder(table, order);
+							ordered.addAndGet(cents);
+						}
+					}
+				} finally {
+					// a server that throws still lets the cooks and the cashier finish
+					serversDone.countDown();
+				}
+				return null;
+			}));
+		}
+
+		try {
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		long elapsed = System.nanoTime() - start;
+		for (Table table : tables) {
+			// the exact cents, since the float a large bill comes back as from checkOut is rounded
+			Order order = table.takeOrderForCheckout();
+			if (order != null) {
+				billed.addAndGet(order.getTotalCents());
+			}
+			restaurant.checkOut(table);
+		}
+
+		List<String> failures = new ArrayList<>();
+		if (billed.get() != ordered.get()) {
+			failures.add("billed " + billed.get() + " cents of " + ordered.get());
+		}
+		if (kitchen.getAvailableCapacity() != MAX_TICKETS) {
+			failures.add("kitchen permits " + kitchen.getAvailableCapacity() + " of " + MAX_TICKETS);
+		}
+		for (Station station : stations) {
+			if (kitchen.getQueuedTickets(station) != 0) {
+				failures.add(station + " has " + kitchen.getQueuedTickets(station) + " tickets left");
+			}
+		}
+		// the poll must fold the final state of every table marked since the last one
+		FloorStatus floor = restaurant.getFloorStatus();
+		for (Table table : tables) {
+			TableStatus status = floor.getTable(table.floorIndex);
+			if (!status.isAvailable() || status.hasOrder()) {
+				failures.add("floor status of table " + table.floorIndex + " is stale");
+			}
+		}
+		Order oversize = new Order();
+		for (int m = 0; m <= MAX_TICKETS; m++) {
+			oversize.addMeal(new Meal(1f));
+		}
+		boolean oversizeRejected = false;
+		try {
+			restaurant.takeOrder(tables[0], oversize);
+		} catch (IllegalArgumentException e) {
+			oversizeRejected = true;
+		}
+		if (!oversizeRejected) {
+			failures.add("an order larger than the kitchen was accepted");
+		}
+
+		System.out.printf("%d servers, %d orders, %d timed out, %.0f orders/s%n", servers,
+				(long) servers * ordersPerServer, rejected.get(),
+				servers * (double) ordersPerServer * 1e9 / elapsed);
+		for (String failure : failures) {
+			System.out.println("FAIL: " + failure);
+		}
+		if (!failures.isEmpty()) {
+			throw new IllegalStateException(failures.size() + " checks failed, the first: " + failures.get(0));
+		}
+		System.out.println("OK");
+	}
+}
@@ -1,5 +1,12 @@
 package Reservation System.Restaurant Reservation System;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+
 class NoTableException extends Exception{
 
 	public NoTableException(Party p)
@@ -10,41 +17,90 @@ class NoTableException extends Exception{
 
 class Meal {
 	private float price;
+	// exact price in cents, so totals do not pick up float rounding
+	private long priceCents;
 	
 	public Meal(float price) {
 		this.price = price;
+		this.priceCents = Math.round(price * 100.0);
 	}
 	
 	public float getPrice() {
 		return this.price;
 	}
+	
+	public long getPriceCents() {
+		return this.priceCents;
+	}
 }
 
+// a fixed block of meals; an order is a linked chain of these
+class MealChunk {
+	static final int SIZE = 16;
+	Meal[] meals = new Meal[SIZE];
+	int size;
+	MealChunk next;
+}
+
+/* Meals are kept in a chain of chunks and the bill as a running total in cents, so
+   adding a meal, merging another order and reading the bill are all O(1). */
 class Order {
-	private List<Meal> meals;
+	private MealChunk head;
+	private MealChunk tail;
+	private int mealCount;
+	private long totalCents;
 	
 	public Order() {
-		meals = new ArrayList<Meal>();
+		head = new MealChunk();
+		tail = head;
 	}
 	
+	public void addMeal(Meal meal) {
+		if (tail.size == MealChunk.SIZE) {
+			tail.next = new MealChunk();
+			tail = tail.next;
+		}
+		tail.meals[tail.size++] = meal;
+		mealCount++;
+		totalCents += meal.getPriceCents();
+	}
+	
+	// read-only copy of the meals in order, built on every call; add meals with addMeal
 	public List<Meal> getMeals() {
-		return meals;
+		List<Meal> meals = new ArrayList<Meal>(mealCount);
+		for (MealChunk c = head; c != null; c = c.next) {
+			for (int i = 0; i < c.size; i++) {
+				meals.add(c.meals[i]);
+			}
+		}
+		return Collections.unmodifiableList(meals);
 	}
 	
+	public int getMealCount() {
+		return mealCount;
+	}
+	
+	// Append the other order's meals by linking its chunks after ours. The other order
+	// is emptied, since its chunks now belong to this one.
 	public void mergeOrder(Order order) {
-		if(order != null) {
-			for(Meal meal : order.getMeals()) {
-				meals.add(meal);
-			}
+		if(order != null && order != this && order.mealCount > 0) {
+			tail.next = order.head;
+			tail = order.tail;
+			mealCount += order.mealCount;
+			totalCents += order.totalCents;
+			order.head = new MealChunk();
+			order.tail = order.head;
+			order.mealCount = 0;
+			order.totalCents = 0;
 		}
 	}
 	
+	public long getTotalCents() {
+		return totalCents;
+	}
+	
 	public float getBill() {
-		int bill = 0;
-		for(Meal meal : meals) {
-			bill += meal.getPrice();
-		}
-		return bill;
+		return totalCents / 100f;
 	}
 }
 
@@ -65,14 +121,15 @@ class Table implements Comparable<Table>{
 	private int capacity;
 	private boolean available;
 	private Order order;
-	List<Date> reservations;
+	// reservations by start time in milliseconds; each holds the table for MAX_DINEHOUR
+	private TreeMap<Long, Date> reservations;
 	
 	public Table(int _id, int _capacity) {
 		id = _id;
 		capacity = _capacity;
 		available = true;
 		order = null;
-		reservations = new ArrayList<>();
+		reservations = new TreeMap<>();
 	}
 	
 	public int getId() {
@@ -83,12 +140,14 @@ class Table implements Comparable<Table>{
 		return capacity;
 	}
 	
+	// reservation dates in time order
 	public List<Date> getReservation() {
-		return reservations;
+		return new ArrayList<>(reservations.values());
 	}
 
-	public void setReservation(Date d) {
-		reservations.add(d);
+	// unchecked; every reservation goes through reserveForDate's overlap check
+	private void setReservation(Date d) {
+		reservations.put(d.getTime(), d);
 	}
 	
 	public boolean isAvailable() {
@@ -122,24 +181,25 @@ class Table implements Comparable<Table>{
 		return capacity - compareTable.getCapacity();
 	}
 	
-	private int findDatePosition(Date d) {
-		return reservations.indexOf(d);
-	}
-	
 	public boolean noFollowReservation(Date d) {
 		if (reservations.isEmpty()) {
 			return true;
 		}
-		Collections.sort(reservations);
-		return reservations.get(reservations.size() - 1).equals(d);
+		return reservations.lastKey() == d.getTime();
 	}
 	
 	public boolean reserveForDate(Date d) {
-		//check if there is overlap of Date 
-		for (Date reservedDate : reservations) {
-			if (d.equals(reservedDate)) {
-				return false;
-			}
+		//check if there is overlap of Date: a sitting lasts MAX_DINEHOUR, so only the
+		//reservations right before and right after d can collide with it
+		long start = d.getTime();
+		long duration = Restaurant.MAX_DINEHOUR * Restaurant.HOUR;
+		Long before = reservations.floorKey(start);
+		if (before != null && start - before < duration) {
+			return false;
+		}
+		Long after = reservations.ceilingKey(start);
+		if (after != null && after - start < duration) {
+			return false;
 		}
 		// add d to reservation 
 		setReservation(d);
@@ -147,8 +207,7 @@ class Table implements Comparable<Table>{
 	}
 	
 	public void removeReservation(Date d) {
-		int idx = findDatePosition(d);
-		reservations.remove(idx);
+		reservations.remove(d.getTime());
 	}
 }
 
@@ -201,10 +260,7 @@ public class Restaurant {
 	public float checkOut(Table t) {
 		// return the amount of the table 
 		Order order = t.getCurrentOrder();
-		int amount = 0;
-		for (Meal m : order.getMeals()) {
-			amount += m.getPrice();
-		}
+		float amount = order == null ? 0 : order.getBill();
 		// mark table as available
 		t.markAvailable();
 		return amount;
@@ -263,27 +319,39 @@ public class Restaurant {
 		table.removeReservation(date);
 	}
 	
-	public String restaurantDescription() {
-		String description = "";
+	// stream the description, e.g. straight into a Writer, without building it up first
+	public void appendDescription(Appendable out) throws IOException {
 		for(int i = 0; i < tables.size(); i++)
 		{
 			Table table = tables.get(i);
-			description += ("Table: " + table.getId() + ", table size: " + table.getCapacity() + ", isAvailable: " + table.isAvailable() + ".");
+			out.append("Table: ").append(Integer.toString(table.getId()))
+					.append(", table size: ").append(Integer.toString(table.getCapacity()))
+					.append(", isAvailable: ").append(Boolean.toString(table.isAvailable())).append('.');
 			if(table.getCurrentOrder() == null)
-				description += " No current order for this table"; 
+				out.append(" No current order for this table");
 			else
-				description +=  " Order price: " + table.getCurrentOrder().getBill();
+				out.append(" Order price: ").append(Float.toString(table.getCurrentOrder().getBill()));
 			
-			description += ". Current reservation dates for this table are: ";
+			out.append(". Current reservation dates for this table are: ");
 			
 			for(Date date : table.getReservation())
 			{
-				description += date.toGMTString() + " ; ";
+				out.append(date.toGMTString()).append(" ; ");
 			}
 			
-			description += ".\n";
+			out.append(".\n");
+		}
+		out.append("*****************************************\n");
+	}
+	
+	public String restaurantDescription() {
+		StringBuilder description = new StringBuilder();
+		try {
+			appendDescription(description);
+		} catch (IOException e) {
+			// a StringBuilder does not throw
+			throw new IllegalStateException(e);
 		}
-		description += "*****************************************\n";
-		return description;
+		return description.toString();
 	}
 }